@@ -1,6 +1,7 @@
 package base;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import java.util.logging.Logger;
 
@@ -13,36 +14,42 @@ public class EnemySet {
 	// Some sprites have a small size for whatever reason
 	final static int GFX_ALTERNATE_DATA_SIZE = 0x300;
 
-	static ArrayList<EnemySet> enemySets = new ArrayList<EnemySet>();
-
-	static int unknownCount;
-
+	// Enemy sets, and the lookups for getEnemySet(), are kept by the current RomSession.
 	public static EnemySet getEnemySet(int ptr) {
+		RomSession session = RomSession.current();
 		int addr = RomReader.BANK(ptr, 0x19);
-		for (int i=0; i<enemySets.size(); i++) {
-			if (enemySets.get(i).enemySetRecord.getAddr() == addr)
-				return enemySets.get(i);
-		}
+		MoveableDataRecord r = RomReader.getRom().moveableDataRecordExists(addr);
+		if (r != null && session.enemySetsByRecord.containsKey(r))
+			return session.enemySetsByRecord.get(r);
 
 		logger.warning("Unexpected enemy set at " + RomReader.toHexString(ptr, 4) + ".");
 
-		EnemySet ret = new EnemySet(ptr, "Unknown " + (++unknownCount));
-		enemySets.add(ret);
+		EnemySet ret = new EnemySet(ptr, "Unknown " + (++session.unknownEnemySets));
+		addEnemySet(ret);
 		return ret;
 	}
 	public static EnemySet getEnemySet(String name) {
-		for (EnemySet e : enemySets) {
-			if (e.getName().equals(name))
-				return e;
-		}
-		return null;
+		return RomSession.current().enemySetsByName.get(name);
+	}
+
+	static void addEnemySet(EnemySet e) {
+		RomSession session = RomSession.current();
+		session.enemySets.add(e);
+		// If two enemy sets share a record or a name, the first one is found
+		if (!session.enemySetsByRecord.containsKey(e.enemySetRecord))
+			session.enemySetsByRecord.put(e.enemySetRecord, e);
+		if (!session.enemySetsByName.containsKey(e.getName()))
+			session.enemySetsByName.put(e.getName(), e);
 	}
 
 	// All enemy sets should be loaded at once, so enemy graphics can be moved freely.
 	public static void reloadEnemySets() {
-		unknownCount = 0;
+		RomSession session = RomSession.current();
+		session.unknownEnemySets = 0;
 
-		enemySets = new ArrayList<EnemySet>();
+		session.enemySets = new ArrayList<EnemySet>();
+		session.enemySetsByRecord = new HashMap<MoveableDataRecord, EnemySet>();
+		session.enemySetsByName = new HashMap<String, EnemySet>();
 
 		ValueFileParser file = ValueFileParser.getEnemySetFile();
 		int entries = file.getNumEntries();
@@ -51,10 +58,10 @@ public class EnemySet {
 			String name = file.indexToName(i);
 
 			if (name.length() >= 7 && name.substring(0, 7).equals("Unknown"))
-				unknownCount++;
+				session.unknownEnemySets++;
 
 			EnemySet enemySet = new EnemySet(addr, name);
-			enemySets.add(enemySet);
+			addEnemySet(enemySet);
 		}
 	}
 
@@ -68,7 +75,7 @@ public class EnemySet {
 
 
 	EnemySet(int addr, String name) {
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 
 		this.name = name;
 
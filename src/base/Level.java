@@ -10,6 +10,7 @@ import java.awt.image.*;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class Level {
@@ -45,27 +46,76 @@ public class Level {
 	
 	BufferedImage levelImage = null;
 	
-	static Level[] levels = new Level[lastLevel+1];
+	// Levels are kept by the current RomSession.
+	// Levels are cheap to construct: their records are registered, with their pointers and the
+	// space they take up, but the tile and object data isn't decoded until it's first used.
+	// When a level is first asked for, the rest of its group (the 8 versions of the level) is
+	// decoded on a background thread.
+	static ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Level prefetch");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	public static Level getLevel(int index)
+	{
+		return getLevel(index, true);
+	}
+	// Without prefetch, for going through every level without decoding them all.
+	// Locks the session, since levels are created on first use and renderers may ask from other threads.
+	public static Level getLevel(int index, boolean prefetch)
 	{
 		if (index > lastLevel)
 			return null;
-		if (levels[index] == null) {
-			levels[index] = new Level(RomReader.rom, index);
+		RomSession session = RomSession.current();
+		synchronized (session) {
+			Level[] levels = session.levels;
+			if (levels[index] == null) {
+				levels[index] = new Level(RomReader.getRom(), index);
+			}
+
+			// All different "versions" of the level should be loaded.
+			// If they use the same data in some areas, it's useful for it to be loaded into the records.
+			for (int i=(index/8)*8; i<(index/8)*8+8 && i <= lastLevel; i++)
+				if (levels[i] == null)
+					levels[i] = new Level(RomReader.getRom(), i);
+
+			if (prefetch)
+				prefetchGroup(session, index/8);
+
+			return levels[index];
 		}
-		
-		// All different "versions" of the level should be loaded.
-		// If they use the same data in some areas, it's useful for it to be loaded into the records.
-		for (int i=(index/8)*8; i<(index/8)*8+8 && i <= lastLevel; i++)
-			if (levels[i] == null)
-				levels[i] = new Level(RomReader.rom, i);
-		
-		return levels[index];
 	}
 	public static void reloadLevels()
 	{
-		for (int i=0; i<=lastLevel; i++)
-			levels[i] = new Level(RomReader.rom, i);
+		RomSession session = RomSession.current();
+		synchronized (session) {
+			session.prefetchedGroups = new boolean[NUM_LEVELS/8+1];
+			for (int i=0; i<=lastLevel; i++)
+				session.levels[i] = new Level(RomReader.getRom(), i);
+		}
+	}
+
+	static void prefetchGroup(RomSession session, int group) {
+		if (session.prefetchedGroups[group])
+			return;
+		session.prefetchedGroups[group] = true;
+		Level[] levels = session.levels;
+
+		// The records are picked on this thread; only decoding them happens in the background
+		final ArrayList<MoveableDataRecord> records = new ArrayList<MoveableDataRecord>();
+		for (int i=group*8; i<group*8+8 && i <= lastLevel; i++) {
+			records.add(levels[i].tileDataRecord);
+			records.add(levels[i].objectDataRecord);
+		}
+		prefetcher.execute(new Runnable() {
+			public void run() {
+				for (MoveableDataRecord r : records)
+					r.prefetch();
+			}
+		});
 	}
 	
 	Level(RomReader _rom, int index)
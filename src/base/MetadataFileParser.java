@@ -45,7 +45,7 @@ public class MetadataFileParser extends ValueFileParser {
 		try {
 			int checksum = getIntValue("romchecksum");
 
-			if (checksum != RomReader.rom.getRomChecksum()) {
+			if (checksum != RomReader.getRom().getRomChecksum()) {
 				int option = JOptionPane.showOptionDialog(null,
 						"The rom checksum does not match the checksum in the metadata file, '" + filename + "'." +
 						"\n\nIf you have edited the rom outside the editor, this is to be expected; click \"continue\"." +
@@ -102,9 +102,15 @@ public class MetadataFileParser extends ValueFileParser {
 		return opened;
 	}
 
-	public void save() {
+	// Returns false if the file couldn't be written.
+	public boolean save() {
+		return save(RomReader.getRom().getRomChecksum());
+	}
+	// The checksum is of the rom file as it was saved, which can differ from the rom in memory
+	// if it was edited during a background save.
+	public boolean save(int romChecksum) {
 		setValue("version", ""+RomReader.toHexString(METADATA_VERSION));
-		setValue("romchecksum", ""+RomReader.toHexString(RomReader.rom.getRomChecksum()));
+		setValue("romchecksum", ""+RomReader.toHexString(romChecksum));
 		try {
 			File f = new File(filename);
 			f.delete();
@@ -130,8 +136,10 @@ public class MetadataFileParser extends ValueFileParser {
 			}
 
 			out.close();
+			return !out.checkError();
 		}
 		catch(FileNotFoundException e) {}
 		catch(IOException e) {}
+		return false;
 	}
 }
@@ -8,23 +8,22 @@ public class ObjectSet {
 	// This means each entry is 4 bytes long.
 	final static int objectTbl = RomReader.BANK(0x5009, 0x19);
 
-	static MoveableDataRecord objectTblRecord;
-
 	public static int NUM_OBJECT_SETS = 0x92;
-	static ObjectSet[] objectSets = new ObjectSet[NUM_OBJECT_SETS];
 
+	// Object sets are kept by the current RomSession.
 	public static ObjectSet getObjectSet(int id) {
 		if (id >= NUM_OBJECT_SETS)
 			return null;
-		return objectSets[id];
+		return RomSession.current().objectSets[id];
 	}
 
-	// This function is called the first time from MainFrame.java.
+	// This function is called the first time from RomLoader.java.
 	// All object sets should be loaded, so that enemy sets can be safely moved around.
 	public static void reloadObjectSets() {
-		objectTblRecord = RomReader.rom.getMoveableDataRecord(objectTbl, null, false, NUM_OBJECT_SETS*4);
+		RomSession session = RomSession.current();
+		session.objectTblRecord = RomReader.getRom().getMoveableDataRecord(objectTbl, null, false, NUM_OBJECT_SETS*4);
 		for (int i=0; i<NUM_OBJECT_SETS; i++) {
-			objectSets[i] = new ObjectSet(i);
+			session.objectSets[i] = new ObjectSet(i, session.objectTblRecord);
 		}
 	}
 	
@@ -32,13 +31,15 @@ public class ObjectSet {
 
 
 	RomReader rom;
+	MoveableDataRecord objectTblRecord;
 	int id;
 
 	public EnemySet enemySet;
 
-	private ObjectSet(int _id)
+	private ObjectSet(int _id, MoveableDataRecord tblRecord)
 	{
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
+		objectTblRecord = tblRecord;
 		
 		id = _id;
 		setItemSetAddr(objectTblRecord.read16(id*4));
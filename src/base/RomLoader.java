@@ -0,0 +1,156 @@
+package base;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import record.RomReader;
+import record.RegionRecord;
+
+// RomLoader: loads everything for a rom whose metadata file has been opened.
+// Mind the order: enemy sets have to be loaded before object sets, which have to be loaded
+// before levels (regions look up their object sets). Tile sets don't depend on any of those,
+// so they're loaded on another thread at the same time:
+//
+//   value files -+-> enemy sets -> object sets -> regions, levels -+-> audit
+//                +-> tile sets ------------------------------------+
+//
+// The value files are parsed in parallel too. Registering records, locking space and setting
+// required banks all lock on the RomReader (see RomReader.getMoveableDataRecord()), and with lazy
+// decoding (see MoveableDataRecord) most records are just copied out of the rom. Each stage's
+// time is logged; the tile sets' time overlaps the others'.
+// Everything is loaded into the given session, on every thread.
+//
+// Files which couldn't be read are listed by getErrors() rather than shown, since load() may be
+// called off the EDT.
+public class RomLoader {
+	final static Logger logger = Logger.getLogger(RomLoader.class.getName());
+
+	public final static int STAGE_VALUE_FILES=0;
+	public final static int STAGE_ENEMY_SETS=1;
+	public final static int STAGE_OBJECT_SETS=2;
+	public final static int STAGE_LEVELS=3;
+	public final static int STAGE_TILE_SETS=4;
+	public final static int STAGE_AUDIT=5;
+	public final static int NUM_STAGES=6;
+
+	public final static String[] stageNames = {
+		"Value files",
+		"Enemy sets",
+		"Object sets",
+		"Levels",
+		"Tile sets",
+		"Audit",
+	};
+
+	RomSession session;
+	RomReader rom;
+	int threads;
+	// Nanoseconds spent in each stage, and in the whole load
+	long[] stageTimes = new long[NUM_STAGES];
+	long totalTime;
+	ArrayList<String> errors = new ArrayList<String>();
+
+	public RomLoader(RomSession session) {
+		this.session = session;
+		rom = session.getRom();
+		threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	public void load() {
+		try {
+			session.run(new Callable<Object>() {
+				public Object call() {
+					loadStages();
+					return null;
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void loadStages() {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 2));
+		try {
+			long t = System.nanoTime();
+			ValueFileParser.reloadValueFiles(pool);
+			stageTimes[STAGE_VALUE_FILES] = System.nanoTime()-t;
+			for (ValueFileParser p : session.valueFiles) {
+				if (p.getError() != null)
+					errors.add(p.getError());
+			}
+
+			Future<Object> tileSets = pool.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return session.run(new Callable<Object>() {
+						public Object call() {
+							long t = System.nanoTime();
+							TileSet.reloadTileSets();
+							stageTimes[STAGE_TILE_SETS] = System.nanoTime()-t;
+							return null;
+						}
+					});
+				}
+			});
+
+			t = System.nanoTime();
+			EnemySet.reloadEnemySets();
+			stageTimes[STAGE_ENEMY_SETS] = System.nanoTime()-t;
+
+			t = System.nanoTime();
+			ObjectSet.reloadObjectSets();
+			stageTimes[STAGE_OBJECT_SETS] = System.nanoTime()-t;
+
+			t = System.nanoTime();
+			RegionRecord.reloadRecords();
+			Level.reloadLevels();
+			stageTimes[STAGE_LEVELS] = System.nanoTime()-t;
+
+			tileSets.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Loading the rom was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		long t = System.nanoTime();
+		rom.auditRecordOverlaps();
+		stageTimes[STAGE_AUDIT] = System.nanoTime()-t;
+
+		totalTime = System.nanoTime()-start;
+		logger.info(getTimingReport());
+	}
+
+	// Messages about files which couldn't be read, for the caller to show
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	public long getStageMillis(int stage) {
+		return stageTimes[stage]/1000000;
+	}
+	public long getTotalMillis() {
+		return totalTime/1000000;
+	}
+
+	public String getTimingReport() {
+		String s = "Loading took " + getTotalMillis() + "ms:";
+		for (int i=0; i<NUM_STAGES; i++)
+			s += " " + stageNames[i] + " " + getStageMillis(i) + "ms" + (i+1 < NUM_STAGES ? "," : "");
+		return s;
+	}
+}
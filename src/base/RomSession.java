@@ -0,0 +1,150 @@
+package base;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import record.*;
+
+// RomSession: everything loaded for one rom. That's the RomReader (which keeps the records) plus
+// the levels, tile sets, object sets, enemy sets and value files read from it.
+//
+// The static lookups (Level.getLevel(), TileSet.getTileSet(), ValueFileParser.getLevelFile(),
+// and so on) go to the current session. That's the session bound to the calling thread by run(),
+// or else the default session, which is the one the editor has open. To work on several roms at
+// once, make a session for each with open() and do everything for a rom inside its run(), on any
+// thread. Two threads shouldn't work on the same session at once, except to read it as described
+// in MoveableDataRecord.getSnapshot().
+//
+// Sessions share the parsed files in the "ref" folder (see ValueFileParser.getRefFile()).
+public class RomSession {
+	static volatile RomSession defaultSession = new RomSession(null);
+	static ThreadLocal<RomSession> threadSession = new ThreadLocal<RomSession>();
+
+	public static RomSession current() {
+		RomSession s = threadSession.get();
+		return s != null ? s : defaultSession;
+	}
+	public static RomSession getDefault() {
+		return defaultSession;
+	}
+	// Makes this the session for every thread which hasn't bound one with run().
+	public static void setDefault(RomSession session) {
+		defaultSession = session;
+		RomReader.setRom(session.rom);
+	}
+
+	// The metadata file which goes with a rom: the same name, with ".mtd".
+	public static String getMetadataFilename(File romFile) {
+		String filename = romFile.getAbsolutePath();
+		int dot = filename.lastIndexOf('.');
+		if (dot > filename.lastIndexOf(File.separatorChar))
+			filename = filename.substring(0, dot);
+		return filename + ".mtd";
+	}
+
+	// Loads a rom and its metadata file into a new session, on the calling thread. Returns null if
+	// the metadata file couldn't be opened. Files which couldn't be read are in getLoadErrors().
+	public static RomSession open(File romFile) {
+		final RomSession session = new RomSession(new RomReader(romFile));
+		final String metadataFilename = getMetadataFilename(romFile);
+		final boolean[] loaded = new boolean[1];
+		session.run(new Runnable() {
+			public void run() {
+				ValueFileParser.reloadMetadataFile(metadataFilename);
+				if (!ValueFileParser.getMetadataFile().isOpened())
+					return;
+				RomLoader loader = new RomLoader(session);
+				loader.load();
+				session.loadErrors.addAll(loader.getErrors());
+				loaded[0] = true;
+			}
+		});
+		return loaded[0] ? session : null;
+	}
+
+
+	RomReader rom;
+
+	MetadataFileParser metadataFile;
+	// In the order of ValueFileParser.valueFileNames
+	ValueFileParser[] valueFiles = new ValueFileParser[ValueFileParser.valueFileNames.length];
+
+	TileSet[] tileSets = new TileSet[256];
+
+	MoveableDataRecord objectTblRecord;
+	ObjectSet[] objectSets = new ObjectSet[ObjectSet.NUM_OBJECT_SETS];
+
+	ArrayList<EnemySet> enemySets = new ArrayList<EnemySet>();
+	// Lookups for EnemySet.getEnemySet(). The record is used rather than its address, since the
+	// address changes when the enemy set is moved.
+	HashMap<MoveableDataRecord, EnemySet> enemySetsByRecord = new HashMap<MoveableDataRecord, EnemySet>();
+	HashMap<String, EnemySet> enemySetsByName = new HashMap<String, EnemySet>();
+	int unknownEnemySets;
+
+	// Levels are created when they're first asked for; see Level.getLevel().
+	Level[] levels = new Level[Level.lastLevel+1];
+	boolean[] prefetchedGroups = new boolean[Level.NUM_LEVELS/8+1];
+
+	ArrayList<String> loadErrors = new ArrayList<String>();
+
+	public RomSession(RomReader rom) {
+		this.rom = rom;
+		if (rom != null)
+			rom.setSession(this);
+	}
+
+	public RomReader getRom() {
+		return rom;
+	}
+	public MetadataFileParser getMetadataFile() {
+		return metadataFile;
+	}
+	public List<String> getLoadErrors() {
+		return loadErrors;
+	}
+	// Levels which have been created so far; the rest haven't been looked at.
+	public synchronized ArrayList<Level> getLoadedLevels() {
+		ArrayList<Level> ret = new ArrayList<Level>();
+		for (Level l : levels) {
+			if (l != null)
+				ret.add(l);
+		}
+		return ret;
+	}
+
+	// Runs the task with this session (and its rom) bound to the calling thread, then puts back
+	// whatever was bound before.
+	public void run(final Runnable task) {
+		try {
+			run(new Callable<Object>() {
+				public Object call() {
+					task.run();
+					return null;
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			// Runnables can't throw checked exceptions
+			throw new RuntimeException(e);
+		}
+	}
+	public <T> T run(Callable<T> task) throws Exception {
+		RomSession lastSession = threadSession.get();
+		threadSession.set(this);
+		RomReader lastRom = RomReader.bindRom(rom);
+		try {
+			return task.call();
+		}
+		finally {
+			if (lastSession == null)
+				threadSession.remove();
+			else
+				threadSession.set(lastSession);
+			RomReader.bindRom(lastRom);
+		}
+	}
+}
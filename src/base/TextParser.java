@@ -8,8 +8,19 @@ import java.util.ArrayList;
 import viewers.CreditEditor;
 
 public class TextParser {
-	public static ValueFileParser normalTableParser = new ValueFileParser("ref/textTable.txt");
-	public static ValueFileParser creditTableParser = new ValueFileParser("ref/creditTextTable.txt");
+	public static ValueFileParser normalTableParser = loadTable("ref/textTable.txt");
+	public static ValueFileParser creditTableParser = loadTable("ref/creditTextTable.txt");
+
+	static ValueFileParser loadTable(String filename) {
+		ValueFileParser parser = new ValueFileParser(filename);
+		if (parser.getError() != null) {
+			JOptionPane.showMessageDialog(null,
+					parser.getError(),
+					"Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
+		return parser;
+	}
 
 	boolean creditText;
 
@@ -162,22 +173,22 @@ public class TextParser {
 	void loadText() {
 		text = "";
 		if (creditText) {
-			record = RomReader.rom.moveableDataRecordExists(addr);
+			record = RomReader.getRom().moveableDataRecordExists(addr);
 			if (record != null)
 				record.addPtr(pointer);
 			else {
 				int end = addr;
 				int line=0;
 				while (line < CreditEditor.maxLines) {
-					if (RomReader.rom.read(end) == 0x7f)
+					if (RomReader.getRom().read(end) == 0x7f)
 						line++;
 					end++;
 				}
-				record = RomReader.rom.getMoveableDataRecord(addr, pointer, false, end-addr);
+				record = RomReader.getRom().getMoveableDataRecord(addr, pointer, false, end-addr);
 			}
 		}
 		else
-			record = RomReader.rom.getMoveableDataRecord(addr, pointer, true, 0);
+			record = RomReader.getRom().getMoveableDataRecord(addr, pointer, true, 0);
 		record.setDescription(recordDescription);
 
 		int i=0;
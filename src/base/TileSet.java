@@ -39,19 +39,20 @@ public class TileSet {
 
 
 
-	public static RomReader rom;
-	static TileSet[] loadedTileSets = new TileSet[256];
-	
+	// Tile sets are kept by the current RomSession.
 	public static TileSet getTileSet(int id)
 	{
 		if (id == 0 || id >= NUM_TILESETS)
 			return null;
+		TileSet[] loadedTileSets = RomSession.current().tileSets;
 		if (loadedTileSets[id] == null)
 			loadedTileSets[id] = new TileSet(id);
 		return loadedTileSets[id];
 	}
 
 	public static void reloadTileSets() {
+		RomReader rom = RomReader.getRom();
+		TileSet[] loadedTileSets = RomSession.current().tileSets;
 		// Lock space we could potentially use for more tileset data
 		rom.lock(tileSetDataTbl, NUM_POSSIBLE_TILESETS*2);
 		rom.lock(metaTileTbl, NUM_POSSIBLE_METATILE_INDICES*2);
@@ -83,7 +84,7 @@ public class TileSet {
 	public static MoveableDataRecord getMetaTileRecord(int metaTileIndex) {
 		RomPointer metaTilePointer = new RomPointer(metaTileTbl+2*metaTileIndex);
 		int metaTileAddr = RomReader.BANK(metaTilePointer.getPointedAddr(), 0x38+metaTileIndex/6);
-		MoveableDataRecord r = rom.getMoveableDataRecord(metaTileAddr, metaTilePointer,
+		MoveableDataRecord r = RomReader.getRom().getMoveableDataRecord(metaTileAddr, metaTilePointer,
 				false, 128*4, 0x38+metaTileIndex/6);
 		r.setDescription("Tileset metadata " + RomReader.toHexString(metaTileIndex, 2));
 		return r;
@@ -98,14 +99,14 @@ public class TileSet {
 
 		RomPointer effectPointer = new RomPointer(effectTbl+2*metaTileIndex);
 		int effectAddr = RomReader.BANK(effectPointer.getPointedAddr(), effectBank);
-		MoveableDataRecord r = rom.getMoveableDataRecord(effectAddr, effectPointer, false, 0x80*2, effectBank);
+		MoveableDataRecord r = RomReader.getRom().getMoveableDataRecord(effectAddr, effectPointer, false, 0x80*2, effectBank);
 		r.setDescription("Tileset effect data " + RomReader.toHexString(metaTileIndex, 2));
 		return r;
 	}
 	public static MoveableDataRecord getFlagRecord(int flagIndex) {
 		RomPointer flagPointer = new RomPointer(flagTbl+2*flagIndex);
 		int flagAddr = RomReader.BANK(flagPointer.getPointedAddr(), 0x38+(flagIndex/6));
-		MoveableDataRecord flagRecord = rom.getMoveableDataRecord(flagAddr, flagPointer,
+		MoveableDataRecord flagRecord = RomReader.getRom().getMoveableDataRecord(flagAddr, flagPointer,
 				true, 0, 0x38+flagIndex/6);
 		flagRecord.setRequiredBank(0x38+flagIndex/6); // Pretty redundant =P
 		// The game actually uses bank 0x38+metaTileIndex/6.
@@ -118,26 +119,27 @@ public class TileSet {
 		RomPointer gfxData0Pointer = new RomPointer(gfxData0Tbl+2*gfxData0Index);
 		int gfxData0Addr = RomReader.BANK(gfxData0Pointer.getPointedAddr(), 0x51+(gfxData0Index/8));
 		// Not giving it the pointer because there's no reason to ever want this to move
-		return rom.getMoveableDataRecord(gfxData0Addr, null,
+		return RomReader.getRom().getMoveableDataRecord(gfxData0Addr, null,
 				false, 0x800, 0x51+gfxData0Index/8);
 	}
 	public static MoveableDataRecord getGfxData1Record(int gfxData1Index) {
 		RomPointer gfxData1Pointer = new RomPointer(gfxData1Tbl+2*gfxData1Index);
 		int gfxData1Addr = RomReader.BANK(gfxData1Pointer.getPointedAddr(), 0x4e+(gfxData1Index/8));
 		// Not giving it the pointer because there's no reason to ever want this to move
-		return rom.getMoveableDataRecord(gfxData1Addr, null,
+		return RomReader.getRom().getMoveableDataRecord(gfxData1Addr, null,
 				false, 0x800, 0x4e+gfxData1Index/8);
 	}
 	public static MoveableDataRecord getPaletteDataRecord(int paletteDataIndex) {
 		RomPointer paletteDataPointer = new RomPointer(paletteDataTbl+2*paletteDataIndex);
 		int paletteDataAddr = RomReader.BANK(paletteDataPointer.getPointedAddr(), 0x33);
-		MoveableDataRecord r = rom.getMoveableDataRecord(paletteDataAddr, paletteDataPointer,
+		MoveableDataRecord r = RomReader.getRom().getMoveableDataRecord(paletteDataAddr, paletteDataPointer,
 				false, 2*4*8, 0x33);
 		r.setDescription("Tileset palette data " + RomReader.toHexString(paletteDataIndex, 2));
 		return r;
 	}
 
 	public static void invalidateAllImages() {
+		TileSet[] loadedTileSets = RomSession.current().tileSets;
 		for (int i=0; i<256; i++) {
 			if (loadedTileSets[i] != null)
 				loadedTileSets[i].invalidateImages();
@@ -169,7 +171,7 @@ public class TileSet {
 		tileSetDataIndex = setId;
 		RomPointer tileSetDataPointer = new RomPointer(tileSetDataTbl+tileSetDataIndex*2);
 		tileSetDataAddr = RomReader.BANK(tileSetDataPointer.getPointedAddr(), 0x30);
-		tileSetDataRecord = rom.getMoveableDataRecord(tileSetDataAddr, tileSetDataPointer, false, 5);
+		tileSetDataRecord = RomReader.getRom().getMoveableDataRecord(tileSetDataAddr, tileSetDataPointer, false, 5);
 		
 		setMetaTileIndex(tileSetDataRecord.read(0));
 		setFlagIndex(tileSetDataRecord.read(1));
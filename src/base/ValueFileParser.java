@@ -1,87 +1,135 @@
 package base;
 import java.io.*;
 import java.util.*;
-import javax.swing.JOptionPane;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
 import record.RomReader;
 
 // ValueFileParser: parses the metadata file and files in the "ref" folder.
 // The "names" are the strings on the leftmost column. The "parameters" are the other strings on that line.
 
 public class ValueFileParser {
-	private static MetadataFileParser metadataFile;
-
-	private static ValueFileParser musicFile;
-	private static ValueFileParser scrollFile;
-	private static ValueFileParser levelFile;
-	private static ValueFileParser tileEffectFile;
-	private static ValueFileParser itemSetFile;
-	private static ValueFileParser enemySetFile;
-	private static ValueFileParser textLocationFile;
-	private static ValueFileParser enemyAiFile;
-	private static ValueFileParser enemyGfxFile;
-	private static ValueFileParser miscGfxFile;
+	final static Logger logger = Logger.getLogger(ValueFileParser.class.getName());
 
+	// The metadata file and the value files (with the metadata merged in) are kept by the
+	// current RomSession, since they belong to a rom.
 	public static MetadataFileParser getMetadataFile() {
-		return metadataFile;
+		return RomSession.current().metadataFile;
 	}
 	public static ValueFileParser getEnemyAiFile() {
-		return enemyAiFile;
+		return RomSession.current().valueFiles[7];
 	}
 	public static ValueFileParser getEnemyGfxFile() {
-		return enemyGfxFile;
+		return RomSession.current().valueFiles[9];
 	}
 	public static ValueFileParser getEnemySetFile() {
-		return enemySetFile;
+		return RomSession.current().valueFiles[5];
 	}
 	public static ValueFileParser getItemSetFile() {
-		return itemSetFile;
+		return RomSession.current().valueFiles[4];
 	}
 	public static ValueFileParser getLevelFile() {
-		return levelFile;
+		return RomSession.current().valueFiles[2];
 	}
 	public static ValueFileParser getMusicFile() {
-		return musicFile;
+		return RomSession.current().valueFiles[0];
 	}
 	public static ValueFileParser getScrollFile() {
-		return scrollFile;
+		return RomSession.current().valueFiles[1];
 	}
 	public static ValueFileParser getTextLocationFile() {
-		return textLocationFile;
+		return RomSession.current().valueFiles[6];
 	}
 	public static ValueFileParser getTileEffectFile() {
-		return tileEffectFile;
+		return RomSession.current().valueFiles[3];
 	}
 	public static ValueFileParser getMiscGfxFile() {
-		return miscGfxFile;
-	}
+		return RomSession.current().valueFiles[8];
+	}
+
+	// In the order of RomSession.valueFiles.
+	final static String[] valueFileNames = {
+		"music.txt",
+		"scrollModes.txt",
+		"level.txt",
+		"tileEffects.txt",
+		"itemSet.txt",
+		"enemySet.txt",
+		"textLocations.txt",
+		"enemyAis.txt",
+		"miscGfx.txt",
+		"enemyGfx.txt",
+	};
 
 	public static void reloadValueFiles() {
-		musicFile = makeValueFile("music.txt");
-		scrollFile = makeValueFile("scrollModes.txt");
-		levelFile = makeValueFile("level.txt");
-		tileEffectFile = makeValueFile("tileEffects.txt");
-		itemSetFile = makeValueFile("itemSet.txt");
-		enemySetFile = makeValueFile("enemySet.txt");
-		textLocationFile = makeValueFile("textLocations.txt");
-		enemyAiFile = makeValueFile("enemyAis.txt");
-		miscGfxFile = makeValueFile("miscGfx.txt");
-		enemyGfxFile = makeValueFile("enemyGfx.txt");
-	}
-
-	static ValueFileParser makeValueFile(String name) {
-		ValueFileParser p = new ValueFileParser("ref/" + name);
+		MetadataFileParser metadataFile = getMetadataFile();
+		ValueFileParser[] files = new ValueFileParser[valueFileNames.length];
+		for (int i=0; i<files.length; i++)
+			files[i] = makeValueFile(valueFileNames[i], metadataFile);
+		RomSession.current().valueFiles = files;
+	}
+	// The files don't depend on each other, so they can all be parsed at once.
+	public static void reloadValueFiles(ExecutorService pool) throws InterruptedException, ExecutionException {
+		// The pool's threads may not be bound to this session
+		final MetadataFileParser metadataFile = getMetadataFile();
+		ArrayList<Future<ValueFileParser>> futures = new ArrayList<Future<ValueFileParser>>();
+		for (final String name : valueFileNames) {
+			futures.add(pool.submit(new Callable<ValueFileParser>() {
+				public ValueFileParser call() {
+					return makeValueFile(name, metadataFile);
+				}
+			}));
+		}
+		ValueFileParser[] files = new ValueFileParser[valueFileNames.length];
+		for (int i=0; i<files.length; i++)
+			files[i] = futures.get(i).get();
+		RomSession.current().valueFiles = files;
+	}
+
+	static ValueFileParser makeValueFile(String name, MetadataFileParser metadataFile) {
+		ValueFileParser p = getRefFile(name);
 		if (metadataFile != null)
 			p.merge(metadataFile.getFileSection(name));
 		return p;
 	}
 
+	// The files in "ref" don't belong to any rom, so each is only parsed once, and again if
+	// it's changed on disk. Sessions get their own copy to merge their metadata into.
+	static class RefFile {
+		ValueFileParser parser;
+		long lastModified;
+	}
+	static HashMap<String, RefFile> refFiles = new HashMap<String, RefFile>();
+
+	static ValueFileParser getRefFile(String name) {
+		String filename = "ref/" + name;
+		long lastModified = new File(filename).lastModified();
+		RefFile ref;
+		synchronized (refFiles) {
+			ref = refFiles.get(name);
+		}
+		// lastModified is 0 if the file couldn't be read; try again next time
+		if (ref == null || ref.lastModified != lastModified || lastModified == 0) {
+			ref = new RefFile();
+			ref.parser = new ValueFileParser(filename);
+			ref.lastModified = lastModified;
+			synchronized (refFiles) {
+				refFiles.put(name, ref);
+			}
+		}
+		return ref.parser.copy();
+	}
+
 
 	public static void reloadMetadataFile(String filename) {
-		metadataFile = new MetadataFileParser(filename);
+		RomSession.current().metadataFile = new MetadataFileParser(filename);
 	}
 
-	public static void saveMetadataFile() {
-		getMetadataFile().save();
+	public static boolean saveMetadataFile() {
+		return getMetadataFile().save();
+	}
+	public static boolean saveMetadataFile(int romChecksum) {
+		return getMetadataFile().save(romChecksum);
 	}
 
 	static String nextLine(Scanner in)
@@ -118,6 +166,9 @@ public class ValueFileParser {
 	ArrayList<Integer> sectionIndices = new ArrayList<Integer>();
 
 	String filename;
+	// Set if the file couldn't be read. The files may be parsed off the EDT, so it's up to
+	// whoever asked for the file to tell the user (see RomLoader.getErrors()).
+	String error;
 
 	public ValueFileParser(String fn) {
 		filename = fn;
@@ -128,10 +179,8 @@ public class ValueFileParser {
 		}
 		catch(FileNotFoundException e)
 		{
-			JOptionPane.showMessageDialog(null, 
-					"Error: \"" + f.toString() + "\" could not be opened.",
-					"Error",
-					JOptionPane.ERROR_MESSAGE);
+			error = "Error: \"" + f.toString() + "\" could not be opened.";
+			logger.warning(error);
 			return;
 		}
 	}
@@ -143,6 +192,20 @@ public class ValueFileParser {
 		merge(parser);
 	}
 
+	// An exact copy, which can be changed without changing this one.
+	ValueFileParser copy() {
+		ValueFileParser p = new ValueFileParser();
+		p.filename = filename;
+		p.error = error;
+		p.names = new ArrayList<String>(names);
+		p.values = new ArrayList<String>(values);
+		p.sections = new ArrayList<String>(sections);
+		p.fileSections = new ArrayList<String>(fileSections);
+		p.sectionList = new ArrayList<String>(sectionList);
+		p.sectionIndices = new ArrayList<Integer>(sectionIndices);
+		return p;
+	}
+
 	void parseFile(File f) throws FileNotFoundException {
 		Scanner in = new Scanner(f);
 
@@ -189,6 +252,10 @@ public class ValueFileParser {
 	public String getFileName() {
 		return filename;
 	}
+	// null if the file was read
+	public String getError() {
+		return error;
+	}
 
 	public int getNameIndex(String name) {
 		return names.indexOf(name);
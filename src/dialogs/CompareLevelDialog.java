@@ -26,7 +26,7 @@ public class CompareLevelDialog extends JDialog {
 	{
 		super(parent, "Compare levels " + RomReader.toHexString(level1.getId(), 2) + " and " + RomReader.toHexString(level2.getId(), 2), 
 				Dialog.ModalityType.APPLICATION_MODAL);
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		
 		this.l1 = level1;
 		this.l2 = level2;
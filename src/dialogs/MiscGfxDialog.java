@@ -30,7 +30,7 @@ public class MiscGfxDialog extends JDialog {
 	{
 		super(null, "Edit Misc. Graphics", Dialog.ModalityType.APPLICATION_MODAL);
 		
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		
 		JPanel contentPane = new JPanel();
 		contentPane.setLayout(new BoxLayout(contentPane, BoxLayout.Y_AXIS));
@@ -26,7 +26,7 @@ public class MiscMusicDialog extends JDialog {
 	{
 		super(parent, "Edit Misc. Music", Dialog.ModalityType.APPLICATION_MODAL);
 		
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		
 		numEntries=0;
 		
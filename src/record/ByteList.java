@@ -0,0 +1,121 @@
+package record;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// ByteList: a growable list of primitive bytes, used in place of ArrayList<Byte>.
+// slice() returns a view sharing the same storage, so no bytes are copied; a slice
+// gets its own copy of the data the first time it's resized.
+public class ByteList {
+	byte[] data;
+	int offset;
+	int size;
+	boolean shared;
+
+	public ByteList() {
+		this(16);
+	}
+	public ByteList(int capacity) {
+		data = new byte[Math.max(capacity, 1)];
+	}
+	// Copies the array.
+	public ByteList(byte[] array) {
+		this(array, 0, array.length);
+	}
+	public ByteList(byte[] array, int start, int end) {
+		data = Arrays.copyOfRange(array, start, end);
+		size = end-start;
+	}
+	public ByteList(ByteList list) {
+		this(list.data, list.offset, list.offset+list.size);
+	}
+	public ByteList(ArrayList<Byte> list) {
+		this(list.size());
+		for (int i=0; i<list.size(); i++)
+			data[i] = list.get(i);
+		size = list.size();
+	}
+
+	// Uses the array as storage, without copying it.
+	public static ByteList wrap(byte[] array) {
+		ByteList ret = new ByteList(1);
+		ret.data = array;
+		ret.size = array.length;
+		return ret;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public byte get(int i) {
+		return data[offset+i];
+	}
+	public void set(int i, byte val) {
+		data[offset+i] = val;
+	}
+
+	public void add(byte val) {
+		ensureCapacity(size+1);
+		data[offset+size++] = val;
+	}
+	public void add(byte[] array, int start, int end) {
+		ensureCapacity(size+end-start);
+		System.arraycopy(array, start, data, offset+size, end-start);
+		size += end-start;
+	}
+	public void add(ByteList list) {
+		add(list.data, list.offset, list.offset+list.size);
+	}
+
+	// Bulk copy into this list, starting at index i. The list isn't resized.
+	public void set(int i, byte[] array, int start, int end) {
+		System.arraycopy(array, start, data, offset+i, end-start);
+	}
+
+	// Grows with zeroes or truncates to the given size.
+	public void setSize(int newSize) {
+		if (newSize > size) {
+			ensureCapacity(newSize);
+			Arrays.fill(data, offset+size, offset+newSize, (byte)0);
+		}
+		size = newSize;
+	}
+
+	void ensureCapacity(int capacity) {
+		if (shared || offset+capacity > data.length) {
+			byte[] newData = new byte[Math.max(capacity, size*2)];
+			System.arraycopy(data, offset, newData, 0, size);
+			data = newData;
+			offset = 0;
+			shared = false;
+		}
+	}
+
+	// A view of [start, end) sharing this list's storage.
+	public ByteList slice(int start, int end) {
+		ByteList ret = new ByteList(1);
+		ret.data = data;
+		ret.offset = offset+start;
+		ret.size = end-start;
+		ret.shared = true;
+		return ret;
+	}
+
+	public byte[] toArray() {
+		return toArray(0, size);
+	}
+	public byte[] toArray(int start, int end) {
+		return Arrays.copyOfRange(data, offset+start, offset+end);
+	}
+	public void copyTo(int start, byte[] dest, int destStart, int length) {
+		System.arraycopy(data, offset+start, dest, destStart, length);
+	}
+
+	public ArrayList<Byte> toArrayList() {
+		ArrayList<Byte> ret = new ArrayList<Byte>(size);
+		for (int i=0; i<size; i++)
+			ret.add(data[offset+i]);
+		return ret;
+	}
+}
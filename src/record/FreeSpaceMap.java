@@ -0,0 +1,304 @@
+package record;
+
+import java.util.*;
+
+// FreeSpaceMap: keeps track of which parts of the rom are free, as sorted extents per bank.
+// Extents never cross a bank boundary. Each bank has two views of the same extents:
+// one ordered by address (for merging and lookups) and one ordered by size (for best-fit).
+// First-fit has a third: a max tree over fixed blocks of the bank (see findFirstFit()).
+class FreeSpaceMap {
+	final static int BANK_SIZE = 0x4000;
+	final static int BLOCK_SIZE = 0x40;
+	final static int NUM_BLOCKS = BANK_SIZE/BLOCK_SIZE;
+
+	int size;
+	// Per bank: extent start -> extent end (exclusive)
+	ArrayList<TreeMap<Integer, Integer>> byAddr = new ArrayList<TreeMap<Integer, Integer>>();
+	// Per bank: extents encoded as (length<<32 | start), so they're sorted by length, then address
+	ArrayList<TreeSet<Long>> bySize = new ArrayList<TreeSet<Long>>();
+	// Per bank: a binary tree in an array, with a leaf per block. Each leaf is the length of the
+	// longest extent starting in its block, and each node is the larger of its children.
+	// Leaves are at NUM_BLOCKS+block; the root is 1.
+	ArrayList<int[]> maxTree = new ArrayList<int[]>();
+
+	// Any byte with the value 0xff is considered free.
+	FreeSpaceMap(RomBuffer data) {
+		size = data.size();
+		int numBanks = (size+BANK_SIZE-1)/BANK_SIZE;
+		for (int b=0; b<numBanks; b++) {
+			byAddr.add(new TreeMap<Integer, Integer>());
+			bySize.add(new TreeSet<Long>());
+			maxTree.add(new int[NUM_BLOCKS*2]);
+		}
+
+		for (int b=0; b<numBanks; b++) {
+			int end = Math.min((b+1)*BANK_SIZE, size);
+			int runStart = -1;
+			int i = b*BANK_SIZE;
+			while (i < end) {
+				// Look at 8 bytes at a time where possible
+				if ((i&7) == 0 && i+8 <= end) {
+					long word = data.read64(i);
+					if (word == -1L) {
+						if (runStart < 0)
+							runStart = i;
+						i += 8;
+						continue;
+					}
+					if (!hasFreeByte(word)) {
+						if (runStart >= 0)
+							addExtent(b, runStart, i);
+						runStart = -1;
+						i += 8;
+						continue;
+					}
+				}
+				if (data.read(i) == 0xff) {
+					if (runStart < 0)
+						runStart = i;
+				}
+				else if (runStart >= 0) {
+					addExtent(b, runStart, i);
+					runStart = -1;
+				}
+				i++;
+			}
+			if (runStart >= 0)
+				addExtent(b, runStart, end);
+		}
+	}
+
+	// A copy which can be changed without affecting the original.
+	FreeSpaceMap(FreeSpaceMap map) {
+		size = map.size;
+		for (int b=0; b<map.getNumBanks(); b++) {
+			byAddr.add(new TreeMap<Integer, Integer>(map.byAddr.get(b)));
+			bySize.add(new TreeSet<Long>(map.bySize.get(b)));
+			maxTree.add(map.maxTree.get(b).clone());
+		}
+	}
+	// A copy of just one bank; the others are empty. For planning banks separately, see
+	// SavePlanner.planBanks().
+	FreeSpaceMap(FreeSpaceMap map, int bank) {
+		size = map.size;
+		for (int b=0; b<map.getNumBanks(); b++) {
+			if (b == bank) {
+				byAddr.add(new TreeMap<Integer, Integer>(map.byAddr.get(b)));
+				bySize.add(new TreeSet<Long>(map.bySize.get(b)));
+				maxTree.add(map.maxTree.get(b).clone());
+			}
+			else {
+				byAddr.add(new TreeMap<Integer, Integer>());
+				bySize.add(new TreeSet<Long>());
+				maxTree.add(new int[NUM_BLOCKS*2]);
+			}
+		}
+	}
+
+	// Replaces a bank with the same bank of another map, which mustn't be used afterwards.
+	void takeBank(FreeSpaceMap map, int bank) {
+		byAddr.set(bank, map.byAddr.get(bank));
+		bySize.set(bank, map.bySize.get(bank));
+		maxTree.set(bank, map.maxTree.get(bank));
+	}
+
+	// True if any byte in the word is 0xff (ie. the inverted word has a zero byte).
+	static boolean hasFreeByte(long word) {
+		long v = ~word;
+		return ((v - 0x0101010101010101L) & ~v & 0x8080808080808080L) != 0;
+	}
+
+	static long sizeKey(int start, int end) {
+		return ((long)(end-start)<<32) | start;
+	}
+
+	void addExtent(int bank, int start, int end) {
+		byAddr.get(bank).put(start, end);
+		bySize.get(bank).add(sizeKey(start, end));
+		updateBlock(bank, start);
+	}
+	void removeExtent(int bank, int start, int end) {
+		byAddr.get(bank).remove(start);
+		bySize.get(bank).remove(sizeKey(start, end));
+		updateBlock(bank, start);
+	}
+
+	// Recalculates the leaf for the block containing addr, and the nodes above it.
+	// A block can only start a few extents, since there's a used byte between any two.
+	void updateBlock(int bank, int addr) {
+		int blockStart = addr-addr%BLOCK_SIZE;
+		int longest = 0;
+		for (Map.Entry<Integer, Integer> e : byAddr.get(bank).subMap(blockStart, blockStart+BLOCK_SIZE).entrySet())
+			longest = Math.max(longest, e.getValue()-e.getKey());
+
+		int[] tree = maxTree.get(bank);
+		int node = NUM_BLOCKS+(addr%BANK_SIZE)/BLOCK_SIZE;
+		tree[node] = longest;
+		for (node/=2; node >= 1; node/=2)
+			tree[node] = Math.max(tree[node*2], tree[node*2+1]);
+	}
+
+	int getNumBanks() {
+		return byAddr.size();
+	}
+
+	boolean isFree(int addr) {
+		return getFreeSpaceLength(addr) > 0;
+	}
+
+	// Returns the number of free bytes starting at addr, up to the end of addr's bank.
+	int getFreeSpaceLength(int addr) {
+		if (addr < 0 || addr >= size)
+			return 0;
+		Map.Entry<Integer, Integer> e = byAddr.get(addr/BANK_SIZE).floorEntry(addr);
+		if (e == null || e.getValue() <= addr)
+			return 0;
+		return e.getValue()-addr;
+	}
+
+	// Mark [addr, addr+bytes) as free, merging with neighbouring extents.
+	void markFree(int addr, int bytes) {
+		int end = addr+bytes;
+		while (addr < end) {
+			int bank = addr/BANK_SIZE;
+			int bankEnd = Math.min(end, (bank+1)*BANK_SIZE);
+			markFreeInBank(bank, addr, bankEnd);
+			addr = bankEnd;
+		}
+	}
+	void markFreeInBank(int bank, int start, int end) {
+		TreeMap<Integer, Integer> map = byAddr.get(bank);
+
+		Map.Entry<Integer, Integer> prev = map.floorEntry(start);
+		if (prev != null && prev.getValue() >= start) {
+			if (prev.getValue() >= end)
+				return;
+			start = prev.getKey();
+			removeExtent(bank, prev.getKey(), prev.getValue());
+		}
+		Map.Entry<Integer, Integer> next = map.ceilingEntry(start);
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			removeExtent(bank, next.getKey(), next.getValue());
+			next = map.ceilingEntry(start);
+		}
+		addExtent(bank, start, end);
+	}
+
+	// Mark [addr, addr+bytes) as used, splitting any extents it overlaps.
+	void markUsed(int addr, int bytes) {
+		int end = addr+bytes;
+		while (addr < end) {
+			int bank = addr/BANK_SIZE;
+			int bankEnd = Math.min(end, (bank+1)*BANK_SIZE);
+			markUsedInBank(bank, addr, bankEnd);
+			addr = bankEnd;
+		}
+	}
+	void markUsedInBank(int bank, int start, int end) {
+		TreeMap<Integer, Integer> map = byAddr.get(bank);
+
+		Map.Entry<Integer, Integer> e = map.floorEntry(start);
+		if (e == null || e.getValue() <= start)
+			e = map.higherEntry(start);
+		while (e != null && e.getKey() < end) {
+			int eStart = e.getKey();
+			int eEnd = e.getValue();
+			removeExtent(bank, eStart, eEnd);
+			if (eStart < start)
+				addExtent(bank, eStart, start);
+			if (eEnd > end)
+				addExtent(bank, end, eEnd);
+			e = map.higherEntry(eStart);
+		}
+	}
+
+	// Returns the lowest address in the bank with at least 'bytes' free, or -1.
+	// Goes down the max tree to the first block starting a long enough extent, so no extents
+	// before it are looked at; then the extent is found within the block.
+	int findFirstFit(int bytes, int bank) {
+		bytes = Math.max(bytes, 1);
+		int[] tree = maxTree.get(bank);
+		if (tree[1] < bytes)
+			return -1;
+		int node = 1;
+		while (node < NUM_BLOCKS) {
+			node *= 2;
+			if (tree[node] < bytes)
+				node++;
+		}
+		int blockStart = bank*BANK_SIZE+(node-NUM_BLOCKS)*BLOCK_SIZE;
+		for (Map.Entry<Integer, Integer> e : byAddr.get(bank).subMap(blockStart, blockStart+BLOCK_SIZE).entrySet()) {
+			if (e.getValue()-e.getKey() >= bytes)
+				return e.getKey();
+		}
+		return -1;
+	}
+
+	// Returns the start of the smallest extent in the bank with at least 'bytes' free, or -1.
+	int findBestFit(int bytes, int bank) {
+		Long key = bySize.get(bank).ceiling((long)bytes<<32);
+		if (key == null)
+			return -1;
+		return (int)(key&0xffffffffL);
+	}
+
+	// Returns the start of the largest extent in the bank, if it has at least 'bytes' free, or -1.
+	int findWorstFit(int bytes, int bank) {
+		TreeSet<Long> set = bySize.get(bank);
+		if (set.isEmpty() || (int)(set.last()>>>32) < bytes)
+			return -1;
+		return (int)(set.last()&0xffffffffL);
+	}
+
+	// Extents are grouped into power-of-2 size classes. The smallest class which can hold
+	// 'bytes' is used, and within that class the lowest address is taken.
+	// This keeps small records packed together, away from the large holes.
+	int findSegregatedFit(int bytes, int bank) {
+		TreeSet<Long> set = bySize.get(bank);
+		for (int c=31-Integer.numberOfLeadingZeros(Math.max(bytes, 1)); c<=31-Integer.numberOfLeadingZeros(BANK_SIZE); c++) {
+			long min = (long)Math.max(bytes, 1<<c)<<32;
+			long max = (long)(1<<(c+1))<<32;
+			int best = -1;
+			for (long key : set.subSet(min, max)) {
+				int start = (int)(key&0xffffffffL);
+				if (best < 0 || start < best)
+					best = start;
+			}
+			if (best >= 0)
+				return best;
+		}
+		return -1;
+	}
+
+	int find(int policy, int bytes, int bank) {
+		switch(policy) {
+			case RomReader.ALLOC_BEST_FIT:
+				return findBestFit(bytes, bank);
+			case RomReader.ALLOC_WORST_FIT:
+				return findWorstFit(bytes, bank);
+			case RomReader.ALLOC_SEGREGATED_FIT:
+				return findSegregatedFit(bytes, bank);
+			default:
+				return findFirstFit(bytes, bank);
+		}
+	}
+
+	int getFreeBytes(int bank) {
+		int total = 0;
+		for (Map.Entry<Integer, Integer> e : byAddr.get(bank).entrySet())
+			total += e.getValue()-e.getKey();
+		return total;
+	}
+
+	int getLargestFreeExtent(int bank) {
+		TreeSet<Long> set = bySize.get(bank);
+		if (set.isEmpty())
+			return 0;
+		return (int)(set.last()>>>32);
+	}
+
+	int getNumHoles(int bank) {
+		return byAddr.get(bank).size();
+	}
+}
@@ -0,0 +1,131 @@
+package record;
+
+import java.io.ByteArrayOutputStream;
+
+// IpsPatch: builds an IPS patch from the byte ranges known to have changed, so the rest of
+// the rom never has to be looked at. Each range is compared with the rom as it was opened,
+// and only the parts which differ become hunks.
+// Format: "PATCH", then hunks, then "EOF". A hunk is a 3-byte offset and a 2-byte size,
+// followed by that many bytes; or, if the size is 0, a 2-byte length and one byte to repeat.
+// Everything is big-endian.
+class IpsPatch {
+	final static int MAX_OFFSET = 0xffffff;
+	final static int MAX_HUNK = 0xffff;
+	// A hunk can't start here, since its offset would read as "EOF"
+	final static int EOF_OFFSET = 0x454f46;
+	// Runs at least this long get their own RLE hunk. An RLE hunk takes 8 bytes, and splitting
+	// a normal hunk around it costs another 5 for the header of the part after it.
+	final static int MIN_RLE_RUN = 14;
+	// Unchanged stretches shorter than this stay inside a hunk, since a new hunk costs 5 bytes
+	final static int MIN_GAP = 5;
+
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	byte[] original;
+	// The range being added, and where it starts
+	byte[] range;
+	int rangeStart;
+
+	IpsPatch(byte[] original) {
+		this.original = original;
+		writeString("PATCH");
+	}
+
+	// original is the whole rom as it was; ranges has the new contents of every range which may
+	// have changed. Everything outside of them is taken to be the same as the original.
+	static byte[] create(byte[] original, RomBuffer.Changes ranges) {
+		IpsPatch patch = new IpsPatch(original);
+		for (int i=0; i<ranges.starts.size(); i++)
+			patch.addChangedRange(ranges.starts.get(i), ranges.bytes.get(i));
+		patch.writeString("EOF");
+		return patch.out.toByteArray();
+	}
+
+	int read(int addr) {
+		if (addr >= rangeStart && addr < rangeStart+range.length)
+			return range[addr-rangeStart]&0xff;
+		return original[addr]&0xff;
+	}
+
+	void addChangedRange(int start, byte[] bytes) {
+		range = bytes;
+		rangeStart = start;
+		int i = start;
+		int end = start+bytes.length;
+		while (i < end) {
+			if (read(i) == (original[i]&0xff)) {
+				i++;
+				continue;
+			}
+			int last = i+1;
+			for (int j=i+1; j<end && j-last < MIN_GAP; j++) {
+				if (read(j) != (original[j]&0xff))
+					last = j+1;
+			}
+			addRange(i, last);
+			i = last;
+		}
+	}
+
+	void addRange(int start, int end) {
+		if (end-1 > MAX_OFFSET)
+			throw new IllegalArgumentException("Address " + RomReader.toHexString(end-1) +
+					" is too big for an IPS patch");
+
+		// Split the range into runs of repeated bytes and the literal data between them
+		int literalStart = start;
+		int i = start;
+		while (i < end) {
+			int val = read(i);
+			int j = i+1;
+			while (j < end && j-i < MAX_HUNK && read(j) == val)
+				j++;
+			if (j-i >= MIN_RLE_RUN) {
+				addLiteral(literalStart, i);
+				addRun(i, j-i, val);
+				literalStart = j;
+			}
+			i = j;
+		}
+		addLiteral(literalStart, end);
+	}
+
+	void addLiteral(int start, int end) {
+		while (start < end) {
+			// The byte before is included instead of starting at the EOF offset
+			if (start == EOF_OFFSET)
+				start--;
+			int size = Math.min(end-start, MAX_HUNK);
+			writeOffset(start);
+			write16(size);
+			for (int i=0; i<size; i++)
+				out.write(read(start+i));
+			start += size;
+		}
+	}
+
+	void addRun(int start, int length, int val) {
+		if (start == EOF_OFFSET) {
+			addLiteral(start, start+1);
+			start++;
+			length--;
+		}
+		writeOffset(start);
+		write16(0);
+		write16(length);
+		out.write(val);
+	}
+
+	void writeOffset(int offset) {
+		out.write((offset>>16)&0xff);
+		out.write((offset>>8)&0xff);
+		out.write(offset&0xff);
+	}
+	void write16(int val) {
+		out.write((val>>8)&0xff);
+		out.write(val&0xff);
+	}
+	void writeString(String s) {
+		for (int i=0; i<s.length(); i++)
+			out.write(s.charAt(i));
+	}
+}
@@ -8,7 +8,7 @@ public class JoinedRecord
 	MoveableDataRecord r1,r2;
 	JoinedRecord(MoveableDataRecord r1, MoveableDataRecord r2)
 	{
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		this.r1 = r1;
 		this.r2 = r2;
 		r1.belongsToJoinedRecord = true;
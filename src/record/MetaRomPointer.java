@@ -21,6 +21,7 @@ public class MetaRomPointer extends RomPointer {
 
 
 	public MetaRomPointer(String name, String fileSection, String section, int format) {
+		rom = RomReader.getRom();
 		this.format = format;
 		this.name = name;
 		this.fileSection = fileSection;
@@ -39,7 +40,7 @@ public class MetaRomPointer extends RomPointer {
 
 	public int getPointedAddr() {
 		try {
-			return ValueFileParser.getMetadataFile().
+			return getMetadataFile().
 				getFileSection(fileSection).getSection(section).getIntValue(name);
 		}
 		catch(NumberFormatException e) {
@@ -65,12 +66,22 @@ public class MetaRomPointer extends RomPointer {
 				output = RomReader.toHexString(addr);
 				break;
 		}
-		ValueFileParser.getMetadataFile().setValue(name, output, fileSection, section);
+		getMetadataFile().setValue(name, output, fileSection, section);
+	}
+
+	// The metadata file of the rom this pointer was made for, rather than the current one
+	MetadataFileParser getMetadataFile() {
+		if (rom != null && rom.getSession() != null)
+			return rom.getSession().getMetadataFile();
+		return ValueFileParser.getMetadataFile();
 	}
 
 	public boolean isNull() {
 		return false;
 	}
+	boolean wouldBeNull() {
+		return false;
+	}
 
 	public boolean equals(Object o) {
 		if (o.getClass() != this.getClass())
@@ -81,4 +92,12 @@ public class MetaRomPointer extends RomPointer {
 			return true;
 		return false;
 	}
+
+	public int hashCode() {
+		return (name.hashCode()*31 + fileSection.hashCode())*31 + section.hashCode();
+	}
+
+	public String toString() {
+		return "metadata value " + fileSection + ":" + section + ":" + name;
+	}
 }
@@ -8,8 +8,6 @@ import java.awt.Color;
 
 import java.util.logging.Logger;
 
-import javax.swing.JOptionPane;
-
 public class MoveableDataRecord extends Record
 {
 	final static Logger logger = Logger.getLogger(Record.class.getName());
@@ -28,23 +26,45 @@ public class MoveableDataRecord extends Record
 	// isMoveable: if false, we won't attempt to move this record around when it's time to save.
 	boolean isMoveable=true;
 
-	RomReader rom;
-	
+	// Number of times the record has been accessed from RomReader.getMoveableDataRecord().
+	int accesses = 1;
+	// The space this record is indexed under in RomReader's RecordIndex, or -1 if it isn't.
+	int indexedStart = -1, indexedEnd = -1;
+
 	int requiredBank=-1;
 	int originalSize;
 	int type;
-	// At any given time, compressedData is not guaranteed to be accurate.
-	// It's really used as a temporary buffer.
-	ArrayList<Byte> compressedData;
+	// compressedData is a cached encoding of decompressedData. It's only valid if
+	// compressedVersion == version, and it was made in the current compression mode.
+	ByteList compressedData;
+	int compressedVersion = -1;
+	// COMPRESSED_ANY means compressedData was read from the rom, and is fine to reuse in any mode.
+	final static int COMPRESSED_ANY = -1;
+	final static int COMPRESSED_GREEDY = 0;
+	final static int COMPRESSED_OPTIMAL = 1;
+	int compressedMode;
 
-	ArrayList<Byte> decompressedData;
+	// Compressed records read from the rom aren't decoded until their data is first needed;
+	// until then this is null, and compressedData (copied from the rom) is enough to know the
+	// record's size and to save it. Use getDecompressedData().
+	volatile ByteList decompressedData;
+	// Incremented every time decompressedData changes.
+	int version = 0;
+	// The last snapshot taken; it's still current while its version matches.
+	RecordSnapshot snapshot;
+
+	// Large compressed records keep their greedy encoding as a run table, which is patched
+	// on every write. It's valid if runTableVersion == version.
+	final static int RUN_TABLE_MIN_SIZE = 0x400;
+	RleRunTable runTable;
+	int runTableVersion = -1;
 	
 	MoveableDataRecord(int addr, ArrayList<RomPointer> pointers, boolean compressed, int size) {
-		modified = false;
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		this.addr = addr;
 		originalAddr = addr;
-		this.ptrs = new ArrayList<RomPointer>(pointers);
+		for (RomPointer ptr : pointers)
+			putPtr(ptr);
 		if (compressed)
 			this.type = RECORD_COMPRESSED;
 		else
@@ -55,16 +75,15 @@ public class MoveableDataRecord extends Record
 		// if compressed==true, parameter 'size' is ignored.
 		if (compressed)
 		{
-			decompressedData = rom.readRLE(addr);
-			compressedData = rom.readRawRLE(addr);
+			compressedData = ByteList.wrap(rom.readRawRLE(addr));
+			compressedVersion = version;
+			compressedMode = COMPRESSED_ANY;
 			originalSize = compressedData.size();
 		}
 		else
 		{
 			// Hold data in decompressedData, even though there's no compression.
-			decompressedData = new ArrayList<Byte>();
-			for (int i=0; i<size; i++)
-				decompressedData.add((Byte)(byte)rom.read(addr+i));
+			decompressedData = ByteList.wrap(rom.readBytes(addr, size));
 			compressedData = null;
 			originalSize = decompressedData.size();
 		}
@@ -72,15 +91,15 @@ public class MoveableDataRecord extends Record
 		rom.lock(addr, originalSize);
 	}
 	MoveableDataRecord(byte[] data, ArrayList<RomPointer> pointers, int b, boolean compressed) {
-		// This is a newly created record - previously non-existent in the rom - so it must be saved.
-		modified = true;
-
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 		addr = -1;
 		originalAddr = -1;
 		originalSize = -1;
-		ptrs = new ArrayList<RomPointer>(pointers);
+		for (RomPointer ptr : pointers)
+			putPtr(ptr);
 		requiredBank = b;
+		// This is a newly created record - previously non-existent in the rom - so it must be saved.
+		setModified(true);
 		if (compressed)
 			this.type = RECORD_COMPRESSED;
 		else
@@ -90,43 +109,192 @@ public class MoveableDataRecord extends Record
 		
 		if (compressed)
 		{
-			decompressedData = new ArrayList<Byte>();
-			for (int i=0; i<data.length; i++)
-				decompressedData.add(data[i]);
-			compressedData = rom.convertToRLE(decompressedData);
+			decompressedData = new ByteList(data);
+			compressedData = null;
 		}
 		else
 		{
 			// Hold data in decompressedData, even though there's no compression.
-			decompressedData = new ArrayList<Byte>();
-			for (int i=0; i<data.length; i++)
-				decompressedData.add(data[i]);
+			decompressedData = new ByteList(data);
 			compressedData = null;
 		}
 	}
 
+	ByteList getDecompressedData() {
+		ByteList data = decompressedData;
+		if (data == null)
+			data = decode();
+		return data;
+	}
+
+	// Only reads compressedData, so it can be called from another thread to decode ahead of time.
+	synchronized ByteList decode() {
+		if (decompressedData == null) {
+			ByteList raw = compressedData;
+			decompressedData = ByteList.wrap(RleCodec.decode(raw.data, raw.offset));
+		}
+		return decompressedData;
+	}
+	// Replacing the data has to wait for a decode on another thread, or it could be overwritten.
+	synchronized void setDecompressedData(ByteList data) {
+		decompressedData = data;
+		version++;
+	}
+
+	// The data as it is now, for reading on another thread. Edits only happen on the EDT, and
+	// each change to decompressedData (and version) is made while holding this record's lock,
+	// so the copy is never half-written. Nothing inside the lock calls out to the rom, so it
+	// can't be held up by the RomReader lock. Snapshots are shared until the next edit.
+	public synchronized RecordSnapshot getSnapshot() {
+		if (snapshot == null || snapshot.version != version)
+			snapshot = new RecordSnapshot(getDecompressedData().toArray(), version);
+		return snapshot;
+	}
+
+	// Decodes the data now rather than when it's first used. Safe to call from any thread.
+	public void prefetch() {
+		decode();
+	}
+
+	boolean isDecoded() {
+		return decompressedData != null;
+	}
+
+	boolean compressedDataValid() {
+		int mode = rom.optimalCompression ? COMPRESSED_OPTIMAL : COMPRESSED_GREEDY;
+		return compressedData != null && compressedVersion == version &&
+				(compressedMode == COMPRESSED_ANY || compressedMode == mode);
+	}
+
+	boolean usesRunTable() {
+		return type == RECORD_COMPRESSED && !rom.optimalCompression &&
+				getDataSize() >= RUN_TABLE_MIN_SIZE;
+	}
+
+	// Returns the run table if this record should use one, building it if necessary.
+	RleRunTable getRunTable() {
+		if (!usesRunTable())
+			return null;
+		if (runTable == null || runTableVersion != version) {
+			ByteList data = getDecompressedData();
+			runTable = new RleRunTable(data.data, data.offset, data.size());
+			runTableVersion = version;
+		}
+		return runTable;
+	}
+
+	// Call after decompressedData[start,end) has been changed in place.
+	void dataChanged(int start, int end) {
+		boolean runTableValid = runTable != null && runTableVersion == version;
+		version++;
+		if (runTableValid) {
+			runTable.update(decompressedData.data, decompressedData.offset, start, end);
+			runTableVersion = version;
+		}
+	}
+
+	// Returns the compressed data, only re-encoding it if the data has changed since last time.
+	ByteList getCompressedData() {
+		synchronized (rom.rleCodec) {
+			return getCompressedData(rom.rleCodec);
+		}
+	}
+	// Different records can be encoded on different threads, as long as each has its own codec.
+	ByteList getCompressedData(RleCodec codec) {
+		if (!compressedDataValid()) {
+			RleRunTable table = getRunTable();
+			if (table != null)
+				compressedData = table.toEncodedData(decompressedData.data, decompressedData.offset);
+			else
+				compressedData = rom.convertToRLE(getDecompressedData(), codec);
+			compressedVersion = version;
+			compressedMode = rom.optimalCompression ? COMPRESSED_OPTIMAL : COMPRESSED_GREEDY;
+		}
+		return compressedData;
+	}
+
+	// Use an encoding made elsewhere (from a copy of the data), unless the data has changed
+	// since the copy was taken.
+	void setCompressedData(ByteList data, int dataVersion, boolean optimal) {
+		if (dataVersion != version || optimal != rom.optimalCompression)
+			return;
+		compressedData = data;
+		compressedVersion = version;
+		compressedMode = optimal ? COMPRESSED_OPTIMAL : COMPRESSED_GREEDY;
+	}
+
+	void setModified(boolean m) {
+		super.setModified(m);
+		if (m)
+			rom.markDirty(this);
+		else
+			rom.markClean(this);
+	}
+
+	void setAddr(int newAddr) {
+		int oldAddr = addr;
+		addr = newAddr;
+		rom.recordMoved(this, oldAddr);
+	}
+
+	// A new pointer, or one which was overwritten, has to be written on the next save.
+	public void addPtr(RomPointer ptr) {
+		super.addPtr(ptr);
+		if (ptr != null && ptrNeedsWrite(ptr))
+			rom.markDirty(this);
+	}
+	// Removing a pointer may leave the record to be deleted on the next save.
+	public void removePtr(RomPointer ptr) {
+		super.removePtr(ptr);
+		if (deleteWithNoPtr)
+			rom.markDirty(this);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
 	public int getSize() {
 		if (type == RECORD_COMPRESSED) {
-			compressedData = rom.convertToRLE(decompressedData);
-			return compressedData.size();
+			if (!compressedDataValid()) {
+				RleRunTable table = getRunTable();
+				if (table != null)
+					return table.getEncodedSize();
+			}
+			return getCompressedData().size();
 		}
 		else
-			return decompressedData.size();
+			return getDecompressedData().size();
+	}
+
+	// How many bytes the data can still grow by before it has to be moved, or a
+	// negative number if it's already too big. Returns 0 if it has no space yet.
+	public int getSpaceRemaining() {
+		if (addr < 0)
+			return 0;
+		return originalSize+rom.getFreeSpaceLength(addr+originalSize) - getSize();
 	}
 	public int getOriginalSize() {
 		return originalSize;
 	}
 	public int getDataSize() {
-		return decompressedData.size();
+		return getDecompressedData().size();
 	}
 	public void setDataSize(int size) {
 		// modified is not set here... hmmm...
 		// I do kinda prefer it this way, since certain sprite graphics are resized, and
 		// I'd rather not rewrite them unless they're edited...
-		while (decompressedData.size() < size)
-			decompressedData.add((byte)0);
-		while (decompressedData.size() > size)
-			decompressedData.remove(size-1);
+		if (size != getDataSize()) {
+			synchronized (this) {
+				// Until it's edited, a record which hasn't been modified goes back into the rom
+				// as it came out (even if packBank() moves it), so its encoding stays valid
+				boolean keepEncoding = !modified && compressedDataValid();
+				getDecompressedData().setSize(size);
+				version++;
+				if (keepEncoding)
+					compressedVersion = version;
+			}
+		}
 	}
 	public boolean fitsInOriginalSpace()
 	{
@@ -137,12 +305,11 @@ public class MoveableDataRecord extends Record
 
 		int originalSlotSize = originalSize+rom.getFreeSpaceLength(addr+originalSize);
 		if (type != RECORD_COMPRESSED) {
-			return decompressedData.size() <= originalSlotSize;
+			return getDecompressedData().size() <= originalSlotSize;
 		}
 		else
 		{
-			compressedData = rom.convertToRLE(decompressedData);
-			return compressedData.size() <= originalSlotSize;
+			return getSize() <= originalSlotSize;
 		}
 	}
 	public void detachFromOriginalSpace() {
@@ -153,9 +320,9 @@ public class MoveableDataRecord extends Record
 
 		if (addr >= 0) {
 			rom.clear(addr, originalSize);
-			addr = -1;
+			setAddr(-1);
 			originalSize = 0;
-			modified = true;
+			setModified(true);
 		}
 	}
 	public void setMoveable(boolean joe) {
@@ -164,18 +331,20 @@ public class MoveableDataRecord extends Record
 	// Read u8
 	public int read(int i)
 	{
-		if (i >= decompressedData.size())
+		ByteList data = getDecompressedData();
+		if (i >= data.size())
 			return -1;
-		return decompressedData.get(i)&0xff;
+		return data.get(i)&0xff;
 	}
 	// Read u16
 	public int read16(int i)
 	{
-		if (i >= decompressedData.size())
+		ByteList data = getDecompressedData();
+		if (i >= data.size())
 			return -1;
-		else if (i == decompressedData.size()-1)
+		else if (i == data.size()-1)
 			return read(i);
-		return (decompressedData.get(i)&0xff)+((decompressedData.get(i+1)&0xff)<<8);
+		return (data.get(i)&0xff)+((data.get(i+1)&0xff)<<8);
 	}
 	// Read u16 and convert it to a rom address for the given bank
 	public int read16(int i, int bank) {
@@ -199,29 +368,30 @@ public class MoveableDataRecord extends Record
 		return image;
 	}
 	public byte[] toArray(int start, int end) {
-		byte[] retData = new byte[end-start];
-		for (int i=start; i<end; i++)
-			retData[i-start] = decompressedData.get(i);
-		return retData;
+		return getDecompressedData().toArray(start, end);
 	}
 	public byte[] toArray(int start) {
-		return toArray(start, decompressedData.size());
+		return toArray(start, getDecompressedData().size());
 	}
 	public byte[] toArray()
 	{
-		return toArray(0, decompressedData.size());
+		return toArray(0, getDecompressedData().size());
 	}
 	public ArrayList<Byte> toArrayList()
 	{
-		return new ArrayList<Byte>(decompressedData);
+		return getDecompressedData().toArrayList();
 	}
 	public void write(int i, byte val)
 	{
-		if (i < decompressedData.size()) {
-			if (decompressedData.get(i) == val)
+		ByteList data = getDecompressedData();
+		if (i < data.size()) {
+			if (data.get(i) == val)
 				return;
-			modified = true;
-			decompressedData.set(i, val);
+			setModified(true);
+			synchronized (this) {
+				data.set(i, val);
+				dataChanged(i, i+1);
+			}
 		}
 	}
 	// No affiliation with member "ptrs", this simply writes
@@ -230,75 +400,95 @@ public class MoveableDataRecord extends Record
 	{
 		int newVal = (val%0x4000)+0x4000;
 		
-		if (i+1 < decompressedData.size()) {
+		if (i+1 < getDecompressedData().size()) {
 			write(i, (byte)(newVal&0xff));
 			write(i+1, (byte)(newVal>>8));
 		}
 	}
 	public void write16(int i, int val) {
-		if (i+1 < decompressedData.size()) {
+		if (i+1 < getDecompressedData().size()) {
 			write(i, (byte)(val&0xff));
 			write(i+1, (byte)(val>>8));
 		}
 	}
 	public void write(int i, byte[] data) {
 		if (data.length != 0 && i < getDataSize())
-			modified = true;
-		for (int j=0; j<data.length && j+i < getDataSize(); j++) {
-			decompressedData.set(j+i, data[j]);
+			setModified(true);
+		int length = Math.min(data.length, getDataSize()-i);
+		if (length > 0) {
+			synchronized (this) {
+				getDecompressedData().set(i, data, 0, length);
+				dataChanged(i, i+length);
+			}
 		}
 	}
 	public void write(byte[] data) {
 		setData(data);
 	}
 	public void setData(byte[] data) {
-		modified = true;
+		setModified(true);
 
-		int lastSize = decompressedData.size();
-		decompressedData = new ArrayList<Byte>();
-		for (int i=0; i<data.length; i++) {
-			decompressedData.add(data[i]);
+		ByteList oldData = getDecompressedData();
+		int lastSize = oldData.size();
+		if (lastSize == data.length) {
+			// Only the part which differs needs to be looked at again
+			int start = 0;
+			while (start < data.length && oldData.get(start) == data[start])
+				start++;
+			int end = data.length;
+			while (end > start && oldData.get(end-1) == data[end-1])
+				end--;
+			if (start < end) {
+				synchronized (this) {
+					oldData.set(start, data, start, end);
+					dataChanged(start, end);
+				}
+			}
+			return;
 		}
+		setDecompressedData(new ByteList(data));
 
 		if (lastSize != decompressedData.size()) {
 			logger.warning("Changing data size to " + decompressedData.size() + ": " + getDescription());
 		}
 	}
 	public void setData(ArrayList<Byte> data) {
-		modified = true;
-		decompressedData = new ArrayList<Byte>(data);
+		setModified(true);
+		setDecompressedData(new ByteList(data));
 	}
 
 	// Sometimes, moveable data is required to be in a specific bank.
+	// Locked on the rom like the rest of the registry, since records are loaded on several threads
 	public void setRequiredBank(int b)
 	{
-		if (!(addr >= 0 && addr/0x4000 == b))
-			modified = true;
-		requiredBank = b;
+		synchronized (rom) {
+			if (!(addr >= 0 && addr/0x4000 == b))
+				setModified(true);
+			requiredBank = b;
+		}
 	}
 
 	public void save() {
 		if (addr < 0)
-			modified = true;
+			setModified(true);
 
 		if (isNull()) {
 			logger.fine("null record " + getDescription());
 			if (addr >= 0) {
 				rom.clear(addr, originalSize);
 			}
-			addr = -1;
+			setAddr(-1);
 			originalAddr = -1;
+			setModified(false);
 			return;
 		}
 
 		if (!modified) {
 			savePtrs();
+			rom.markClean(this);
 			return;
 		}
 
-		if (type == RECORD_COMPRESSED)
-			compressedData = rom.convertToRLE(decompressedData);
-		
 		// Clear location of original data
 		if (addr >= 0) {
 			// Remember to lock the memory after writing it back
@@ -308,19 +498,15 @@ public class MoveableDataRecord extends Record
 		// Condition for moving data
 		if (!fitsInOriginalSpace()) {
 			if (!isMoveable) {
-				JOptionPane.showMessageDialog(null,
-						"Un-moveable data was changed in size and is too big." +
-						"Data was originally stored at 0x" + RomReader.toHexString(originalAddr) + ".\n" +
-						(description != "" ? "Data description: \"" + description + "\"\n" : "Data has no description.\n") +
-						"\nThe rom will not be saved. Try decreasing the data size and try again.",
-						"Error",
-						JOptionPane.ERROR_MESSAGE);
-				rom.saveFail = true;
+				rom.saveError("Un-moveable data was changed in size and is too big. " +
+						"Data was originally stored at 0x" + RomReader.toHexString(originalAddr) + ". " +
+						(description != "" ? "Data description: \"" + description + "\". " : "Data has no description. ") +
+						"Try decreasing the data size and try again.");
 				return;
 			}
 			// Find a new spot for the data
 			if (requiredBank >= 0) {
-				addr = rom.findFreeSpace(getSize(), requiredBank, true);
+				setAddr(rom.findFreeSpace(getSize(), requiredBank, true));
 				if (addr < 0 && !rom.packedBank(requiredBank)) {
 					// packBank() will invoke save() on this record, so return
 					rom.packBank(requiredBank);
@@ -328,17 +514,13 @@ public class MoveableDataRecord extends Record
 				}
 			}
 			else
-				addr = rom.findFreeSpace(getSize(), true);
+				setAddr(rom.findFreeSpace(getSize(), true));
 			if (addr < 0) {
-				JOptionPane.showMessageDialog(null,
-						"There was an error allocating space in the rom for data.\n" +
-						"Data was originally stored at 0x" + RomReader.toHexString(originalAddr) + ".\n" +
-						(description != "" ? "Data description: \"" + description + "\"\n" : "Data has no description.\n") +
-						"\nThe rom will not be saved. Sorry =(",
-						"Error",
-						JOptionPane.ERROR_MESSAGE);
+				rom.saveError("There was an error allocating space in the rom for data (" +
+						RomReader.toHexString(getSize()) + " bytes). " +
+						"Data was originally stored at 0x" + RomReader.toHexString(originalAddr) + ". " +
+						(description != "" ? "Data description: \"" + description + "\"." : "Data has no description."));
 				originalAddr = -1;
-				rom.saveFail = true;
 				return;
 			}
 
@@ -348,12 +530,12 @@ public class MoveableDataRecord extends Record
 		
 		int size;
 		if (type == RECORD_COMPRESSED) {
-			size = compressedData.size();
-			rom.write(addr, compressedData);
+			size = getCompressedData().size();
+			rom.write(addr, getCompressedData());
 		}
 		else {
-			size = decompressedData.size();
-			rom.write(addr, decompressedData);
+			size = getDecompressedData().size();
+			rom.write(addr, getDecompressedData());
 		}
 		rom.lock(addr, size);
 
@@ -363,8 +545,9 @@ public class MoveableDataRecord extends Record
 
 		originalAddr = addr;
 		originalSize = size;
+		rom.recordResized(this);
 
-		modified = false;
+		setModified(false);
 	}
 
 	// This function returns true if this record can and should be deleted.
@@ -380,4 +563,15 @@ public class MoveableDataRecord extends Record
 		}
 		return false;
 	}
+
+	// Whether isNull() would be true at save time, without trimming the pointers.
+	boolean wouldBeNull() {
+		if (!deleteWithNoPtr)
+			return false;
+		for (RomPointer ptr : ptrs) {
+			if (!ptr.wouldBeNull())
+				return false;
+		}
+		return true;
+	}
 }
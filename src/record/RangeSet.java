@@ -0,0 +1,65 @@
+package record;
+
+import java.util.*;
+
+// RangeSet: a set of addresses, stored as sorted non-overlapping [start, end) ranges.
+// Touching ranges are merged, so writing a block byte by byte ends up as one range.
+class RangeSet {
+	// start -> end (exclusive)
+	TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+
+	// The range touched by the last add(), since writes usually come in sequence.
+	int lastStart = -1, lastEnd = -1;
+
+	void add(int start, int end) {
+		if (start >= end)
+			return;
+		if (start >= lastStart && end <= lastEnd)
+			return;
+
+		Map.Entry<Integer, Integer> prev = ranges.floorEntry(start);
+		if (prev != null && prev.getValue() >= start) {
+			if (prev.getValue() >= end) {
+				lastStart = prev.getKey();
+				lastEnd = prev.getValue();
+				return;
+			}
+			start = prev.getKey();
+		}
+		Map.Entry<Integer, Integer> next = ranges.ceilingEntry(start);
+		while (next != null && next.getKey() <= end) {
+			end = Math.max(end, next.getValue());
+			ranges.remove(next.getKey());
+			next = ranges.ceilingEntry(start);
+		}
+		ranges.put(start, end);
+		lastStart = start;
+		lastEnd = end;
+	}
+
+	boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	void clear() {
+		ranges.clear();
+		lastStart = lastEnd = -1;
+	}
+
+	// Number of ranges
+	int size() {
+		return ranges.size();
+	}
+
+	// Total number of addresses in the set
+	int getLength() {
+		int total = 0;
+		for (Map.Entry<Integer, Integer> e : ranges.entrySet())
+			total += e.getValue()-e.getKey();
+		return total;
+	}
+
+	Set<Map.Entry<Integer, Integer>> entrySet() {
+		return ranges.entrySet();
+	}
+}
@@ -9,11 +9,15 @@ public abstract class Record {
 	// don't use it for checking free space at its original position or stuff like that
 	int originalAddr;
 
+	RomReader rom;
+
 	// Note: even if modified is false, remember to check the pointers!
-	public boolean modified = false;
+	// Use setModified() rather than setting this directly, so the rom knows about it.
+	boolean modified = false;
 
-	// List of pointers pointing to this data.
-	ArrayList<RomPointer> ptrs = new ArrayList<RomPointer>();
+	// Set of pointers pointing to this data. Pointers are hashed by where they're stored,
+	// so the same pointer can't be added twice. Iterates in the order they were added.
+	LinkedHashSet<RomPointer> ptrs = new LinkedHashSet<RomPointer>();
 
 	String description = "";
 
@@ -22,43 +26,61 @@ public abstract class Record {
 	public int getAddr() {
 		return addr;
 	}
+
+	public boolean isModified() {
+		return modified;
+	}
+	void setModified(boolean m) {
+		modified = m;
+		rom.recordModified(this, m);
+	}
+
+	// True if the pointer doesn't point to this record's current address yet.
+	boolean ptrNeedsWrite(RomPointer ptr) {
+		if (ptr.getType() == RomPointer.TYPE_METADATA)
+			return originalAddr != addr;
+		return !(ptr.getPointedAddr() == addr ||
+				(ptr.hasBankAddr() == false && ptr.getPointedAddr()%0x4000 == addr%0x4000));
+	}
 	public void addPtr(RomPointer ptr) {
 		if (ptr == null)
 			return;
-		for (int i=0; i<ptrs.size(); i++)
-		{
-			if (ptrs.get(i).equals(ptr))
-				return;
+		putPtr(ptr);
+	}
+	// Adds the pointer to the set and to the rom's pointer index.
+	// Pointers are changed under the rom's lock, along with its pointer index.
+	void putPtr(RomPointer ptr) {
+		synchronized (rom) {
+			if (ptrs.add(ptr))
+				rom.pointerAdded(ptr, this);
 		}
-		ptrs.add(ptr);
 	}
 	public void removePtr(RomPointer ptr) {
-		for (int i=0; i<ptrs.size(); i++)
-		{
-			if (ptrs.get(i).equals(ptr))
-			{
-				ptrs.remove(i--);
-				//System.out.println("Pointer removed.");
-				// Might as well return here, there shouldn't be pointer duplicates.
-				// But lets be safe.
-			}
+		synchronized (rom) {
+			if (ptrs.remove(ptr))
+				rom.pointerRemoved(ptr, this);
 		}
 	}
 	public void trimPtrs() {
-		for (int i=0; i<ptrs.size(); i++) {
-			if (ptrs.get(i).isNull()) {
-				ptrs.remove(i--);
+		synchronized (rom) {
+			Iterator<RomPointer> it = ptrs.iterator();
+			while (it.hasNext()) {
+				RomPointer ptr = it.next();
+				if (ptr.isNull()) {
+					it.remove();
+					rom.pointerRemoved(ptr, this);
+				}
 			}
 		}
 	}
 	public void savePtrs() {
 		// Write to all pointers.
-		for (int i=0; i<ptrs.size(); i++)
+		// ptr.save() may come back around to this record, so go through a copy of the set.
+		for (RomPointer ptr : new ArrayList<RomPointer>(ptrs))
 		{
-			if (ptrs.get(i).isNull())
-				ptrs.remove(i--);
+			if (ptr.isNull())
+				removePtr(ptr);
 			else {
-				RomPointer ptr = ptrs.get(i);
 				// If the pointer isn't pointing to the correct address, it must be saved.
 				boolean save = false;
 				if (ptr.getType() == RomPointer.TYPE_METADATA) {
@@ -78,7 +100,9 @@ public abstract class Record {
 					// All records are saved when the save button is clicked.
 					// But if a record that depends on this one is saved first?
 					// That happens sometimes, if it does, it's re-saved right here.
-					ptr.save();
+					// (Unless the rom is saving records in dependency order, then it's saved later.)
+					if (!(rom.savingInOrder && ptr.getType() == RomPointer.TYPE_RECORD))
+						ptr.save();
 				}
 			}
 		}
@@ -0,0 +1,94 @@
+package record;
+
+import java.util.*;
+
+// RecordIndex: finds which records own which bytes of the rom.
+// Each record is indexed by the space it takes up, [addr, addr+originalSize), sorted by start.
+// Since no record is longer than the longest one seen, a query only has to look back that far
+// from its start address; records live within a bank, so that's never more than 0x4000 bytes.
+class RecordIndex {
+	// Start address -> records starting there (normally only one)
+	TreeMap<Integer, ArrayList<MoveableDataRecord>> byStart = new TreeMap<Integer, ArrayList<MoveableDataRecord>>();
+	int maxLength = 0;
+	int size = 0;
+
+	// Re-index the record at its current address and size.
+	void update(MoveableDataRecord r) {
+		remove(r);
+		if (r.addr < 0 || r.originalSize <= 0)
+			return;
+		r.indexedStart = r.addr;
+		r.indexedEnd = r.addr+r.originalSize;
+		ArrayList<MoveableDataRecord> list = byStart.get(r.indexedStart);
+		if (list == null) {
+			list = new ArrayList<MoveableDataRecord>(1);
+			byStart.put(r.indexedStart, list);
+		}
+		list.add(r);
+		maxLength = Math.max(maxLength, r.indexedEnd-r.indexedStart);
+		size++;
+	}
+
+	void remove(MoveableDataRecord r) {
+		if (r.indexedStart < 0)
+			return;
+		ArrayList<MoveableDataRecord> list = byStart.get(r.indexedStart);
+		if (list != null && list.remove(r)) {
+			if (list.isEmpty())
+				byStart.remove(r.indexedStart);
+			size--;
+		}
+		r.indexedStart = -1;
+		r.indexedEnd = -1;
+	}
+
+	void clear() {
+		byStart.clear();
+		maxLength = 0;
+		size = 0;
+	}
+
+	// The record containing addr, or null.
+	MoveableDataRecord get(int addr) {
+		ArrayList<MoveableDataRecord> list = get(addr, addr+1);
+		if (list.isEmpty())
+			return null;
+		return list.get(0);
+	}
+
+	// All records with any bytes in [start, end), in order of address.
+	ArrayList<MoveableDataRecord> get(int start, int end) {
+		ArrayList<MoveableDataRecord> ret = new ArrayList<MoveableDataRecord>();
+		if (start >= end || byStart.isEmpty())
+			return ret;
+		int from = Math.max(0, start-maxLength+1);
+		for (ArrayList<MoveableDataRecord> list : byStart.subMap(from, end).values()) {
+			for (MoveableDataRecord r : list) {
+				if (r.indexedEnd > start)
+					ret.add(r);
+			}
+		}
+		return ret;
+	}
+
+	// Returns a description of every pair of records whose space overlaps.
+	// Each record is compared with the record before it that reaches the furthest.
+	ArrayList<String> findOverlaps() {
+		ArrayList<String> ret = new ArrayList<String>();
+		MoveableDataRecord furthest = null;
+		for (ArrayList<MoveableDataRecord> list : byStart.values()) {
+			for (MoveableDataRecord r : list) {
+				if (furthest != null && r.indexedStart < furthest.indexedEnd)
+					ret.add(describe(furthest) + " overlaps " + describe(r));
+				if (furthest == null || r.indexedEnd > furthest.indexedEnd)
+					furthest = r;
+			}
+		}
+		return ret;
+	}
+
+	static String describe(MoveableDataRecord r) {
+		return "\"" + r.getDescription() + "\" (" + RomReader.toHexString(r.indexedStart) + "-" +
+			RomReader.toHexString(r.indexedEnd-1) + ")";
+	}
+}
@@ -0,0 +1,44 @@
+package record;
+
+// RecordSnapshot: a record's data as it was at one version. It never changes, so it can be
+// read on any thread while the record itself goes on being edited on the EDT.
+// See MoveableDataRecord.getSnapshot().
+public final class RecordSnapshot {
+	final byte[] data;
+	final int version;
+
+	RecordSnapshot(byte[] data, int version) {
+		this.data = data;
+		this.version = version;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+	public int size() {
+		return data.length;
+	}
+
+	// Same as MoveableDataRecord.read(): -1 if out of range.
+	public int read(int i) {
+		if (i < 0 || i >= data.length)
+			return -1;
+		return data[i]&0xff;
+	}
+	public int read16(int i) {
+		if (i < 0 || i >= data.length)
+			return -1;
+		else if (i == data.length-1)
+			return read(i);
+		return (data[i]&0xff)+((data[i+1]&0xff)<<8);
+	}
+
+	public byte[] toArray() {
+		return data.clone();
+	}
+
+	// Shares the array, so it mustn't be written to.
+	ByteList getData() {
+		return ByteList.wrap(data);
+	}
+}
@@ -17,18 +17,19 @@ public class RegionRecord extends Record
 
 	public final static int NUM_SECTORS = 0x1e;
 
-	static ArrayList<RegionRecord> regionRecords = new ArrayList<RegionRecord>();
+	// The records are kept by the rom (RomReader.regionRecords). Records read from the rom are
+	// also there by warp table address; records made with getNew() aren't, since they have no address.
 	// This function gets a regionRecord.
 	public static RegionRecord get(int _tblAddr, RomPointer ptr) {
-		for (int i=0; i<regionRecords.size(); i++) {
-			RegionRecord r = regionRecords.get(i);
-			if (r.addr == _tblAddr && r.addr != -1) {
-				r.addPtr(ptr);
-				return r;
-			}
+		RomReader rom = RomReader.getRom();
+		RegionRecord r = rom.regionRecordMap.get(_tblAddr);
+		if (r != null) {
+			r.addPtr(ptr);
+			return r;
 		}
-		RegionRecord r = new RegionRecord(_tblAddr, ptr);
-		regionRecords.add(r);
+		r = new RegionRecord(_tblAddr, ptr);
+		rom.regionRecords.add(r);
+		rom.regionRecordMap.put(_tblAddr, r);
 		return r;
 	}
 	// This function makes a copy of a regionRecord.
@@ -39,16 +40,16 @@ public class RegionRecord extends Record
 	// This function makes a new regionRecord
 	public static RegionRecord getNew(byte[] warpData, RomPointer ptr, int bank) {
 		RegionRecord r = new RegionRecord(warpData, ptr, bank);
-		regionRecords.add(r);
+		r.rom.regionRecords.add(r);
 		return r;
 	}
 
 	public static void reloadRecords() {
-		regionRecords = new ArrayList<RegionRecord>();
+		RomReader rom = RomReader.getRom();
+		rom.regionRecords = new LinkedHashSet<RegionRecord>();
+		rom.regionRecordMap = new HashMap<Integer, RegionRecord>();
 	}
 
-	RomReader rom;
-
 	// Here, addr is warpDataTbl.
 	// It *probably* won't change.
 	int warpDataBank;
@@ -67,9 +68,9 @@ public class RegionRecord extends Record
 	int[] sectorDestinations = new int[NUM_SECTORS];
 
 	RegionRecord(int _tblAddr, RomPointer ptr) {
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 
-		modified = false;
+		setModified(false);
 		addr = _tblAddr;
 		warpDataBank = addr/0x4000;
 		// The pointer to tableRecord would be the same as the pointer to this record.
@@ -107,10 +108,10 @@ public class RegionRecord extends Record
 	}
 
 	RegionRecord(byte[] warpData, RomPointer ptr, int bank) {
-		rom = RomReader.rom;
+		rom = RomReader.getRom();
 
 		addr = -1;
-		modified = true;
+		setModified(true);
 		warpDataBank = bank;
 
 		tableRecord = rom.getMoveableDataRecord(new byte[NUM_SECTORS*2], ptr, warpDataBank, false);
@@ -149,7 +150,7 @@ public class RegionRecord extends Record
 			sectorDestinations[i] = 0xff;
 			warpRecords[i].removePtr(warpDataPointer);
 			warpRecords[i] = null;
-			modified = true;
+			setModified(true);
 		}
 		else {
 			// Here, all other regions are checked to make sure no others 
@@ -221,7 +222,7 @@ public class RegionRecord extends Record
 
 	public void addRegion(Region r) {
 		regions.add(r);
-		modified = true;
+		setModified(true);
 	}
 
 	public void deleteRegion(Region r) {
@@ -234,18 +235,18 @@ public class RegionRecord extends Record
 	public void setSectorDestination(int i, int dest) {
 		if (sectorDestinations[i] != dest) {
 			sectorDestinations[i] = dest;
-			modified = true;
+			setModified(true);
 		}
 	}
 
 	public void save() {
 		// Check if the regions have changed
 		if (regions.size() != originalRegions.size())
-			modified = true;
+			setModified(true);
 		else {
 			for (int i=0; i<regions.size(); i++) {
 				if (!regions.get(i).equals(originalRegions.get(i))) {
-					modified = true;
+					setModified(true);
 					break;
 				}
 			}
@@ -253,7 +254,10 @@ public class RegionRecord extends Record
 
 		if (tableRecord.isNull()) {
 			log.info("Deleting region data");
-			regionRecords.remove(this);
+			rom.regionRecords.remove(this);
+			if (addr != -1 && rom.regionRecordMap.get(addr) == this)
+				rom.regionRecordMap.remove(addr);
+			setModified(false);
 			return;
 		}
 
@@ -305,7 +309,7 @@ public class RegionRecord extends Record
 			for (Region r : regions) {
 				originalRegions.add(new Region(r));
 			}
-			modified = false;
+			setModified(false);
 		}
 	}
 
@@ -0,0 +1,314 @@
+package record;
+
+import java.util.Arrays;
+
+// RleCodec: the game's RLE format.
+// Each block starts with a header byte n:
+// - n == 0:        end of data
+// - n&0x80 != 0:   (n&0x7f) literal bytes follow
+// - otherwise:     one byte follows, repeated n times
+//
+// The encoder writes into a buffer which is reused between calls, and can also just
+// measure the encoded size without writing anything.
+public class RleCodec {
+	final static int MAX_RUN = 0x7f;
+
+	byte[] buffer = new byte[0x100];
+
+	// If set, encode() finds the smallest possible encoding instead of using the greedy encoder.
+	boolean optimal = false;
+	// Work arrays for the optimal encoder, reused between calls.
+	// cost[i] = smallest encoded size of src[i,end) not counting the terminator,
+	// block[i] = length of the block starting at i in that encoding (negative for literal blocks).
+	int[] cost = new int[0];
+	int[] block = new int[0];
+
+	public RleCodec() {
+	}
+	public RleCodec(boolean optimal) {
+		this.optimal = optimal;
+	}
+
+	public boolean isOptimal() {
+		return optimal;
+	}
+	public void setOptimal(boolean optimal) {
+		this.optimal = optimal;
+	}
+
+	// Returns the size of the decompressed data at addr, without decompressing it.
+	static int getDecodedSize(RomBuffer src, int addr) {
+		int size = 0;
+		int n = src.read(addr++);
+		while (n != 0) {
+			if ((n&0x80) != 0) {
+				size += n&0x7f;
+				addr += n&0x7f;
+			}
+			else {
+				size += n;
+				addr++;
+			}
+			n = src.read(addr++);
+		}
+		return size;
+	}
+
+	// Returns the size of the compressed data at addr, including the terminator.
+	static int getEncodedSize(RomBuffer src, int addr) {
+		int start = addr;
+		int n = src.read(addr++);
+		while (n != 0) {
+			if ((n&0x80) != 0)
+				addr += n&0x7f;
+			else
+				addr++;
+			n = src.read(addr++);
+		}
+		return addr-start;
+	}
+
+	static byte[] decode(RomBuffer src, int addr) {
+		byte[] output = new byte[getDecodedSize(src, addr)];
+		int pos = 0;
+		int n = src.read(addr++);
+		while (n != 0) {
+			if ((n&0x80) != 0) {
+				n &= 0x7f;
+				src.read(addr, output, pos, n);
+				addr += n;
+			}
+			else {
+				Arrays.fill(output, pos, pos+n, (byte)src.read(addr++));
+			}
+			pos += n;
+			n = src.read(addr++);
+		}
+		return output;
+	}
+
+	// Decodes the compressed data starting at src[start].
+	public static byte[] decode(byte[] src, int start) {
+		int size = 0;
+		int addr = start;
+		int n = src[addr++]&0xff;
+		while (n != 0) {
+			if ((n&0x80) != 0) {
+				size += n&0x7f;
+				addr += n&0x7f;
+			}
+			else {
+				size += n;
+				addr++;
+			}
+			n = src[addr++]&0xff;
+		}
+
+		byte[] output = new byte[size];
+		int pos = 0;
+		addr = start;
+		n = src[addr++]&0xff;
+		while (n != 0) {
+			if ((n&0x80) != 0) {
+				n &= 0x7f;
+				System.arraycopy(src, addr, output, pos, n);
+				addr += n;
+			}
+			else {
+				Arrays.fill(output, pos, pos+n, src[addr++]);
+			}
+			pos += n;
+			n = src[addr++]&0xff;
+		}
+		return output;
+	}
+
+	// Encodes src[start,end) into the internal buffer and returns the encoded size.
+	// The result is valid in getBuffer() until the next call.
+	public int encode(byte[] src, int start, int end) {
+		int bound = (end-start) + (end-start)/MAX_RUN + 2;
+		if (buffer.length < bound)
+			buffer = new byte[Math.max(bound, buffer.length*2)];
+		if (optimal) {
+			planOptimal(src, start, end);
+			return writeOptimal(src, start, end, buffer);
+		}
+		return encode(src, start, end, buffer);
+	}
+
+	// The encoded size of src[start,end) in this codec's mode, without writing any output.
+	public int getEncodedSize(byte[] src, int start, int end) {
+		if (optimal) {
+			planOptimal(src, start, end);
+			return cost[0]+1;
+		}
+		return measure(src, start, end);
+	}
+
+	// Checks that the encoded data decodes back to src[start,end).
+	public static boolean verify(byte[] src, int start, int end, byte[] encoded, int encodedSize) {
+		if (encodedSize <= 0 || encoded[encodedSize-1] != 0)
+			return false;
+		byte[] decoded;
+		try {
+			decoded = decode(encoded, 0);
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+		return Arrays.equals(decoded, Arrays.copyOfRange(src, start, end));
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public static byte[] encode(byte[] src) {
+		RleCodec codec = new RleCodec();
+		int size = codec.encode(src, 0, src.length);
+		return Arrays.copyOf(codec.buffer, size);
+	}
+
+	// The encoded size of src[start,end), without writing the output anywhere.
+	public static int measure(byte[] src, int start, int end) {
+		return encode(src, start, end, null);
+	}
+
+	// Optimal encoder: dynamic programming from the end of the data.
+	// At each position, the best choice is either a run block of any length the data allows,
+	// or a literal block of any length up to MAX_RUN, followed by the best encoding of the rest.
+	// Since each block's cost only depends on its own length, this gives the smallest
+	// possible encoding for the format.
+	void planOptimal(byte[] src, int start, int end) {
+		int n = end-start;
+		if (cost.length < n+1) {
+			cost = new int[n+1];
+			block = new int[n+1];
+		}
+		cost[n] = 0;
+		// Length of the run of equal bytes starting at i (capped to MAX_RUN)
+		int runLength = 0;
+		for (int i=n-1; i>=0; i--) {
+			if (i+1 < n && src[start+i] == src[start+i+1])
+				runLength = Math.min(runLength+1, MAX_RUN);
+			else
+				runLength = 1;
+
+			int best = Integer.MAX_VALUE;
+			int bestBlock = 0;
+			for (int l=runLength; l>=2; l--) {
+				int c = 2+cost[i+l];
+				if (c < best) {
+					best = c;
+					bestBlock = l;
+				}
+			}
+			int maxLiteral = Math.min(MAX_RUN, n-i);
+			for (int l=maxLiteral; l>=1; l--) {
+				int c = 1+l+cost[i+l];
+				if (c < best) {
+					best = c;
+					bestBlock = -l;
+				}
+			}
+			cost[i] = best;
+			block[i] = bestBlock;
+		}
+	}
+
+	int writeOptimal(byte[] src, int start, int end, byte[] out) {
+		int pos = 0;
+		int i = 0;
+		while (start+i < end) {
+			int l = block[i];
+			if (l < 0) {
+				out[pos] = (byte)(0x80|-l);
+				System.arraycopy(src, start+i, out, pos+1, -l);
+				pos += 1-l;
+				i -= l;
+			}
+			else {
+				out[pos] = (byte)l;
+				out[pos+1] = src[start+i];
+				pos += 2;
+				i += l;
+			}
+		}
+		out[pos] = 0;
+		return pos+1;
+	}
+
+	// Greedy encoder. A single byte which isn't repeated starts a literal block, which then
+	// swallows following runs of 1 or 2 bytes; longer runs get their own block.
+	// If 'out' is null nothing is written, only the size is computed.
+	static int encode(byte[] src, int start, int end, byte[] out) {
+		int pos = 0;
+		int i = start;
+		while (i < end) {
+			int block = nextBlock(src, i, end);
+			if (block < 0) {
+				if (out != null) {
+					out[pos] = (byte)(0x80|-block);
+					System.arraycopy(src, i, out, pos+1, -block);
+				}
+				pos += 1-block;
+				i -= block;
+			}
+			else {
+				if (out != null) {
+					out[pos] = (byte)block;
+					out[pos+1] = src[i];
+				}
+				pos += 2;
+				i += block;
+			}
+		}
+
+		if (out != null)
+			out[pos] = 0;
+		return pos+1;
+	}
+
+	// The greedy encoder's choice for the block starting at src[i]: a positive number is the
+	// length of a run block, a negative number is the length of a literal block.
+	// The choice never depends on more than LOOKAHEAD bytes past the end of the block.
+	final static int LOOKAHEAD = 3;
+	static int nextBlock(byte[] src, int i, int end) {
+		byte val = src[i];
+		int j = i;
+		int length = 0;
+		while (j < end && length < MAX_RUN && src[j] == val) {
+			j++;
+			length++;
+		}
+		if (length != 1)
+			return length;
+
+		int count = 1;
+		while (j < end && count < MAX_RUN) {
+			byte nextVal = src[j];
+			int nextLength = 0;
+			// Only whether the run is longer than 2 matters
+			while (j < end && nextLength < LOOKAHEAD && src[j] == nextVal) {
+				j++;
+				nextLength++;
+			}
+			if (nextLength <= 2) {
+				int added = Math.min(nextLength, MAX_RUN-count);
+				count += added;
+				if (added < nextLength)
+					break;
+			}
+			else
+				break;
+		}
+		return -count;
+	}
+
+	// Encoded size of a block returned by nextBlock().
+	static int blockSize(int block) {
+		if (block < 0)
+			return 1-block;
+		return 2;
+	}
+}
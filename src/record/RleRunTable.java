@@ -0,0 +1,137 @@
+package record;
+
+import java.util.Arrays;
+
+// RleRunTable: the greedy RLE encoding of some data, kept as a table of blocks.
+// When a few bytes change, only the blocks around them are re-encoded, and the rest of the
+// table is reused. This works because the greedy encoder's choice for a block only depends
+// on the data from the block's start to a few bytes past its end; so once re-encoding
+// reaches an old block boundary past the changed bytes, everything after it is unchanged.
+//
+// The encoded size is kept up to date, so it can be read at any time without encoding.
+class RleRunTable {
+	int numBlocks;
+	// Offset in the decoded data where each block starts
+	int[] blockStart = new int[64];
+	// Block as returned by RleCodec.nextBlock(): >0 for runs, <0 for literals
+	int[] block = new int[64];
+	int dataSize;
+	// Not counting the terminator
+	int encodedSize;
+
+	// Scratch space for re-encoded blocks
+	int[] newStart = new int[16];
+	int[] newBlock = new int[16];
+
+	RleRunTable(byte[] src, int offset, int size) {
+		dataSize = size;
+		int i = 0;
+		while (i < size) {
+			int b = RleCodec.nextBlock(src, offset+i, offset+size);
+			append(i, b);
+			i += Math.abs(b);
+		}
+	}
+
+	void append(int start, int b) {
+		if (numBlocks == block.length) {
+			blockStart = Arrays.copyOf(blockStart, numBlocks*2);
+			block = Arrays.copyOf(block, numBlocks*2);
+		}
+		blockStart[numBlocks] = start;
+		block[numBlocks] = b;
+		numBlocks++;
+		encodedSize += RleCodec.blockSize(b);
+	}
+
+	// Including the terminator
+	int getEncodedSize() {
+		return encodedSize+1;
+	}
+
+	int getDataSize() {
+		return dataSize;
+	}
+
+	// Index of the block containing decoded offset i
+	int findBlock(int i) {
+		int k = Arrays.binarySearch(blockStart, 0, numBlocks, i);
+		if (k < 0)
+			k = -k-2;
+		return k;
+	}
+
+	// Bytes [changeStart, changeEnd) of the data have changed. The data's size must be the same.
+	void update(byte[] src, int offset, int changeStart, int changeEnd) {
+		if (numBlocks == 0 || changeStart >= changeEnd)
+			return;
+
+		// The first block which could have looked at the changed bytes
+		int first = findBlock(Math.max(0, changeStart-RleCodec.LOOKAHEAD));
+		int last = first;
+
+		int numNew = 0;
+		int removedSize = 0;
+		int pos = blockStart[first];
+		while (pos < dataSize) {
+			// Skip old blocks which have been passed
+			while (last < numBlocks && blockStart[last] < pos) {
+				removedSize += RleCodec.blockSize(block[last]);
+				last++;
+			}
+			// Resynchronized with the old table
+			if (pos >= changeEnd && last < numBlocks && blockStart[last] == pos)
+				break;
+
+			int b = RleCodec.nextBlock(src, offset+pos, offset+dataSize);
+			if (numNew == newBlock.length) {
+				newStart = Arrays.copyOf(newStart, numNew*2);
+				newBlock = Arrays.copyOf(newBlock, numNew*2);
+			}
+			newStart[numNew] = pos;
+			newBlock[numNew] = b;
+			numNew++;
+			pos += Math.abs(b);
+		}
+		if (pos >= dataSize) {
+			while (last < numBlocks) {
+				removedSize += RleCodec.blockSize(block[last]);
+				last++;
+			}
+		}
+
+		// Replace blocks [first, last) with the new ones
+		int newNumBlocks = numBlocks - (last-first) + numNew;
+		if (newNumBlocks > block.length) {
+			blockStart = Arrays.copyOf(blockStart, newNumBlocks*2);
+			block = Arrays.copyOf(block, newNumBlocks*2);
+		}
+		System.arraycopy(blockStart, last, blockStart, first+numNew, numBlocks-last);
+		System.arraycopy(block, last, block, first+numNew, numBlocks-last);
+		System.arraycopy(newStart, 0, blockStart, first, numNew);
+		System.arraycopy(newBlock, 0, block, first, numNew);
+		numBlocks = newNumBlocks;
+
+		encodedSize -= removedSize;
+		for (int i=0; i<numNew; i++)
+			encodedSize += RleCodec.blockSize(newBlock[i]);
+	}
+
+	// Writes out the encoded data, terminator included.
+	ByteList toEncodedData(byte[] src, int offset) {
+		ByteList out = new ByteList(getEncodedSize());
+		for (int k=0; k<numBlocks; k++) {
+			int b = block[k];
+			if (b < 0) {
+				out.add((byte)(0x80|-b));
+				out.add(src, offset+blockStart[k], offset+blockStart[k]-b);
+			}
+			else {
+				out.add((byte)b);
+				out.add(src[offset+blockStart[k]]);
+			}
+		}
+		out.add((byte)0);
+		return out;
+	}
+}
@@ -0,0 +1,275 @@
+package record;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+
+// RomBuffer: the backing store for RomReader.
+// The rom file is read onto the heap, so writes never reach the file until flush() is called.
+// The byte ranges which changed are tracked, so saving only has to write those back.
+// It isn't memory-mapped: Windows won't let a file with a live mapping be replaced, which
+// would stop the atomic save from ever working there, and a mapping can't be released on demand.
+class RomBuffer {
+	File file;
+	ByteBuffer buffer;
+	// Every byte which has changed since the last flush().
+	RangeSet changed = new RangeSet();
+	// Every byte which has been written to since the file was opened. The file only has the
+	// ones which were saved, so patches read these back from it; see readSavedRanges().
+	RangeSet changedSinceLoad = new RangeSet();
+	// The file as it was opened, which patches are made against.
+	byte[] original;
+
+	// The header's checksum bytes, which aren't counted in the checksum.
+	final static int CHECKSUM_ADDR = 0x14e;
+	// Sum of every byte except the checksum bytes. It's computed the first time it's needed,
+	// then every write adjusts it by the difference.
+	int checksum;
+	boolean checksumValid = false;
+
+	RomBuffer(File f) throws IOException {
+		file = f;
+		readIntoHeap();
+	}
+
+	void readIntoHeap() throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			buffer = ByteBuffer.allocate((int)channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new EOFException(file.toString());
+			}
+			buffer.clear();
+			original = buffer.array().clone();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// The ranges in changedSinceLoad as they are in the file now, which isn't necessarily what's
+	// in the buffer: changes which haven't been saved, or whose save failed, aren't in the file.
+	// Nothing outside these ranges can have changed, so nothing else is read.
+	Changes readSavedRanges() throws IOException {
+		Changes c = new Changes();
+		c.file = file;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			for (Map.Entry<Integer, Integer> e : changedSinceLoad.entrySet()) {
+				ByteBuffer range = ByteBuffer.allocate(e.getValue()-e.getKey());
+				long pos = e.getKey();
+				while (range.hasRemaining()) {
+					int n = channel.read(range, pos);
+					if (n < 0)
+						throw new EOFException(file.toString());
+					pos += n;
+				}
+				c.starts.add(e.getKey());
+				c.bytes.add(range.array());
+			}
+		}
+		finally {
+			in.close();
+		}
+		return c;
+	}
+
+	int size() {
+		return buffer.capacity();
+	}
+
+	int read(int addr) {
+		return buffer.get(addr)&0xff;
+	}
+
+	int read16(int addr) {
+		return buffer.getShort(addr)&0xffff;
+	}
+
+	int read16(int addr, int bank) {
+		return RomReader.BANK(read16(addr), bank);
+	}
+
+	long read64(int addr) {
+		return buffer.getLong(addr);
+	}
+
+	void read(int addr, byte[] dest, int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(addr);
+		b.get(dest, offset, length);
+	}
+
+	void write(int addr, byte val) {
+		byte old = buffer.get(addr);
+		if (old == val)
+			return;
+		buffer.put(addr, val);
+		changed.add(addr, addr+1);
+		changedSinceLoad.add(addr, addr+1);
+		if (checksumValid && addr != CHECKSUM_ADDR && addr != CHECKSUM_ADDR+1)
+			checksum += (val&0xff) - (old&0xff);
+	}
+
+	// Only bytes which actually change are marked as changed.
+	void write(int addr, byte[] src, int offset, int length) {
+		for (int i=0; i<length; i++)
+			write(addr+i, src[offset+i]);
+	}
+
+	int getChecksum() {
+		if (!checksumValid) {
+			checksum = computeChecksum();
+			checksumValid = true;
+		}
+		return checksum;
+	}
+
+	// Sums the whole buffer.
+	int computeChecksum() {
+		int sum = 0;
+		for (int i=0; i<size(); i++)
+			sum += buffer.get(i)&0xff;
+		if (size() > CHECKSUM_ADDR+1)
+			sum -= read(CHECKSUM_ADDR) + read(CHECKSUM_ADDR+1);
+		return sum;
+	}
+
+	boolean isDirty() {
+		return !changed.isEmpty();
+	}
+
+	// Number of bytes changed since the last flush().
+	int getNumChangedBytes() {
+		return changed.getLength();
+	}
+
+	// Changes: a copy of the changed ranges, which can be written to the file on another
+	// thread while the buffer keeps changing.
+	static class Changes {
+		File file;
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		ArrayList<byte[]> bytes = new ArrayList<byte[]>();
+
+		boolean isEmpty() {
+			return starts.isEmpty();
+		}
+	}
+
+	// Copies out the changed ranges, which then count as written. If writing them fails they
+	// should be given back with restoreChanges().
+	Changes takeChanges() {
+		Changes c = new Changes();
+		c.file = file;
+		for (Map.Entry<Integer, Integer> e : changed.entrySet()) {
+			byte[] b = new byte[e.getValue()-e.getKey()];
+			read(e.getKey(), b, 0, b.length);
+			c.starts.add(e.getKey());
+			c.bytes.add(b);
+		}
+		changed.clear();
+		return c;
+	}
+
+	// Marks the ranges as changed again, after they couldn't be written. Whatever is in the
+	// buffer now is what gets written next time.
+	void restoreChanges(Changes c) {
+		for (int i=0; i<c.starts.size(); i++)
+			changed.add(c.starts.get(i), c.starts.get(i)+c.bytes.get(i).length);
+	}
+
+	// Write the changed ranges back to the file.
+	void flush(boolean atomic) throws IOException {
+		if (!isDirty())
+			return;
+		Changes c = takeChanges();
+		try {
+			write(c, atomic);
+		}
+		catch (IOException e) {
+			restoreChanges(c);
+			throw e;
+		}
+	}
+
+	// Doesn't touch the buffer, so it's safe to call from any thread.
+	// If atomic is set, the changes are written to a copy of the file which is then moved
+	// over it in one step, so the file is never left half-written. If that can't be done, the
+	// original is left alone and an exception is thrown. Otherwise they're written in place.
+	static void write(Changes c, boolean atomic) throws IOException {
+		if (c.isEmpty())
+			return;
+
+		if (!atomic) {
+			writeChanges(c, c.file);
+			return;
+		}
+
+		File file = c.file;
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			copyFile(file, temp);
+			writeChanges(c, temp);
+			try {
+				Files.move(temp.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e) {
+				throw new IOException("Couldn't replace " + file + " with the saved copy (" + e + "); the rom file wasn't changed", e);
+			}
+		}
+		finally {
+			if (temp.exists())
+				temp.delete();
+		}
+	}
+
+	// Positional writes of each changed range to the given file, which must already be
+	// the same size as the buffer.
+	static void writeChanges(Changes c, File dest) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(dest, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			for (int i=0; i<c.starts.size(); i++) {
+				ByteBuffer range = ByteBuffer.wrap(c.bytes.get(i));
+				long pos = c.starts.get(i);
+				while (range.hasRemaining())
+					pos += channel.write(range, pos);
+			}
+			channel.force(true);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	static void copyFile(File src, File dest) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(src, "r");
+		try {
+			RandomAccessFile out = new RandomAccessFile(dest, "rw");
+			try {
+				FileChannel inChannel = in.getChannel();
+				FileChannel outChannel = out.getChannel();
+				long size = inChannel.size();
+				long pos = 0;
+				while (pos < size)
+					pos += inChannel.transferTo(pos, size-pos, outChannel);
+				outChannel.truncate(size);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+}
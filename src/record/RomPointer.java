@@ -18,6 +18,10 @@ public class RomPointer {
 
 	int type;
 
+	// The rom the pointer is in, for TYPE_DIRECT and TYPE_DIRECT_FRAGMENTED. Pointers are made for
+	// the current rom, like records, and keep using it even when saved from another thread.
+	RomReader rom;
+
 	// -- TYPE_DIRECT --
 	// ptrAddr1 = address of the pointer.
 	// If it's fragmented, ptrAddr1 points to the high byte, ptrAddr2 to the low byte.
@@ -35,18 +39,21 @@ public class RomPointer {
 
 	// Make a TYPE_DIRECT.
 	public RomPointer(int ptrAddr1, int bankAddr) {
+		rom = RomReader.getRom();
 		type = TYPE_DIRECT;
 		this.ptrAddr1 = ptrAddr1;
 		this.bankAddr = bankAddr;
 	}
 	// Make a TYPE_DIRECT. bankAddr is set to -1 to indicate there is no bankAddr.
 	public RomPointer(int ptrAddr1) {
+		rom = RomReader.getRom();
 		type = TYPE_DIRECT;
 		this.ptrAddr1 = ptrAddr1;
 		this.bankAddr = -1;
 	}
 	// Make a TYPE_DIRECT_FRAGMENTED.
 	public RomPointer(int ptrAddr1, int ptrAddr2, int bankAddr) {
+		rom = RomReader.getRom();
 		type = TYPE_DIRECT_FRAGMENTED;
 		this.ptrAddr1 = ptrAddr1;
 		this.ptrAddr2 = ptrAddr2;
@@ -86,15 +93,15 @@ public class RomPointer {
 		int ptr = RomReader.toGbPtr(newAddr);
 		switch(type) {
 			case TYPE_DIRECT:
-				RomReader.rom.writePtr(ptrAddr1, ptr);
+				rom.writePtr(ptrAddr1, ptr);
 				if (bankAddr >= 0)
-					RomReader.rom.write(bankAddr, (byte)newBank);
+					rom.write(bankAddr, (byte)newBank);
 				break;
 			case TYPE_DIRECT_FRAGMENTED:
-				RomReader.rom.write(ptrAddr1, (byte)((ptr>>8)&0xff));
-				RomReader.rom.write(ptrAddr2, (byte)(ptr&0xff));
+				rom.write(ptrAddr1, (byte)((ptr>>8)&0xff));
+				rom.write(ptrAddr2, (byte)(ptr&0xff));
 				if (bankAddr >= 0)
-					RomReader.rom.write(bankAddr, (byte)newBank);
+					rom.write(bankAddr, (byte)newBank);
 				break;
 			case TYPE_RECORD:
 				ptrRecord.writePtr(ptrIndex, ptr);
@@ -108,15 +115,15 @@ public class RomPointer {
 		switch(type) {
 			case TYPE_DIRECT:
 				if (bankAddr >= 0)
-					return RomReader.rom.read16(ptrAddr1, RomReader.rom.read(bankAddr));
+					return rom.read16(ptrAddr1, rom.read(bankAddr));
 				else
-					return RomReader.toGbPtr(RomReader.rom.read16(ptrAddr1));
+					return RomReader.toGbPtr(rom.read16(ptrAddr1));
 
 			case TYPE_DIRECT_FRAGMENTED:
 				if (bankAddr >= 0)
-					return RomReader.BANK(RomReader.rom.read(ptrAddr2)|(RomReader.rom.read(ptrAddr1)<<8), RomReader.rom.read(bankAddr));
+					return RomReader.BANK(rom.read(ptrAddr2)|(rom.read(ptrAddr1)<<8), rom.read(bankAddr));
 				else
-					return RomReader.rom.read(ptrAddr2)|(RomReader.rom.read(ptrAddr1)<<8);
+					return rom.read(ptrAddr2)|(rom.read(ptrAddr1)<<8);
 			case TYPE_RECORD:
 				if (bankRecord != null)
 					return ptrRecord.read16(ptrIndex, bankRecord.read(bankIndex));
@@ -164,6 +171,13 @@ public class RomPointer {
 		return false;
 	}
 
+	// Same as isNull(), but doesn't trim any pointers.
+	boolean wouldBeNull() {
+		if (type == TYPE_DIRECT || type == TYPE_DIRECT_FRAGMENTED)
+			return false;
+		return ptrRecord.wouldBeNull() || (bankRecord != null && bankRecord.wouldBeNull());
+	}
+
 	public boolean equals(Object o) {
 		if (o.getClass() != this.getClass())
 			return false;
@@ -180,5 +194,24 @@ public class RomPointer {
 		// the address but not for the bank... something's kinda wrong.
 		// Unless maybe one pointer just doesn't have the bank set...?
 	}
+
+	// Must agree with equals(): only the pointer's location counts.
+	public int hashCode() {
+		if (type == TYPE_DIRECT)
+			return ptrAddr1;
+		else if (type == TYPE_DIRECT_FRAGMENTED)
+			return ptrAddr1*31 + ptrAddr2;
+		else
+			return System.identityHashCode(ptrRecord)*31 + ptrIndex;
+	}
+
+	public String toString() {
+		if (type == TYPE_DIRECT)
+			return "pointer at " + RomReader.toHexString(ptrAddr1);
+		else if (type == TYPE_DIRECT_FRAGMENTED)
+			return "pointer at " + RomReader.toHexString(ptrAddr1) + "/" + RomReader.toHexString(ptrAddr2);
+		else
+			return "pointer at index " + RomReader.toHexString(ptrIndex) + " of \"" + ptrRecord.getDescription() + "\"";
+	}
 	
 }
@@ -2,10 +2,9 @@ package record;
 
 import java.util.logging.Logger;
 
-import javax.swing.JOptionPane;
-
 import base.Level;
 import base.Region;
+import base.RomSession;
 
 import graphics.Drawing;
 
@@ -20,14 +19,71 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 public class RomReader {
 	final static Logger logger = Logger.getLogger(RomReader.class.getName());
 
-	public static RomReader rom;
+	// The rom records are created for; use getRom(). A thread working on a rom other than the
+	// one being edited binds it with bindRom() (see base.RomSession), so several roms can be
+	// loaded and saved at once. Volatile so that background threads see the rom once it's swapped.
+	static volatile RomReader defaultRom;
+	static ThreadLocal<RomReader> threadRom = new ThreadLocal<RomReader>();
+
+	public static RomReader getRom() {
+		RomReader r = threadRom.get();
+		return r != null ? r : defaultRom;
+	}
+	// Sets the rom for every thread which hasn't bound one of its own.
+	public static void setRom(RomReader r) {
+		defaultRom = r;
+	}
+	// Binds a rom to the calling thread, or unbinds it if null. Returns the one bound before.
+	public static RomReader bindRom(RomReader r) {
+		RomReader last = threadRom.get();
+		if (r == null)
+			threadRom.remove();
+		else
+			threadRom.set(r);
+		return last;
+	}
 	
 	// When data can be moved anywhere, it's moved to one of these banks.
 	// They are completely blank, at first.
 	public static final int[] preferredFreeBanks = {0x16,0x17,0x1B,0x1C,0x1D,0x1E,0x1F,0x4A,0x4B,0x4C,
 		0x4D,0x59,0x5A,0x5B,0x5C,0x5D,0x5E,0x5F,0x66,0x67,0x73,0x74,0x75};
-	byte[] data;
-	boolean[] free;
+
+	// How free space is chosen when a record has to be moved.
+	// ALLOC_FIRST_FIT = lowest address in the first bank that fits (the original behaviour).
+	public static final int ALLOC_FIRST_FIT=0;
+	// ALLOC_BEST_FIT = smallest hole that fits, in any of the candidate banks.
+	public static final int ALLOC_BEST_FIT=1;
+	// ALLOC_WORST_FIT = largest hole, in any of the candidate banks.
+	public static final int ALLOC_WORST_FIT=2;
+	// ALLOC_SEGREGATED_FIT = lowest address in the smallest power-of-2 size class that fits.
+	public static final int ALLOC_SEGREGATED_FIT=3;
+	public static final String[] allocationPolicyNames = {"First fit", "Best fit", "Worst fit", "Segregated fit"};
+
+	// Save settings. These belong to the rom, so that roms open at once can be saved differently.
+	public int allocationPolicy = ALLOC_FIRST_FIT;
+	// If set, compressed data is saved with the smallest possible encoding rather than the
+	// greedy one. Slower, but makes it more likely for data to fit in its original space.
+	public boolean optimalCompression = false;
+	// If set, save() writes the changes to a copy of the rom, then renames it over the original.
+	// Otherwise the changes are written to the rom file directly.
+	public boolean atomicSave = true;
+	// Number of threads used to encode records while saving.
+	public int saveThreads = Runtime.getRuntime().availableProcessors();
+	// If set, getRomChecksum() double-checks the running checksum against a full recompute.
+	public boolean verifyChecksum = false;
+
+	// The session this rom was loaded into, if any. Saving looks at its levels.
+	RomSession session;
+
+	public RomSession getSession() {
+		return session;
+	}
+	public void setSession(RomSession s) {
+		session = s;
+	}
+
+	RomBuffer data;
+	FreeSpaceMap free;
 	File file;
 	int banks;
 	
@@ -37,19 +93,10 @@ public class RomReader {
 	{
 		file = f;
 		try {
-			FileInputStream in = new FileInputStream(file);
-			data = new byte[(int)file.length()];
-			in.read(data);
-			banks = data.length/0x4000;
+			data = new RomBuffer(file);
+			banks = data.size()/0x4000;
 			
-			free = new boolean[data.length];
-			for (int i=0; i<data.length; i++)
-			{
-				if ((data[i]&0xff) == 0xff)
-					free[i] = true;
-				else
-					free[i] = false;
-			}
+			free = new FreeSpaceMap(data);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -65,46 +112,83 @@ public class RomReader {
 	}
 
 	public int getRomSize() {
-		return data.length;
+		return data.size();
 	}
 
 	// This doesn't catch all cases of modification,
 	// such as if the rom is written to directly (this shouldn't be done 
 	// typically),
 	// or if pointers are changed with the data remaining untouched.
+	// Changes which were saved into the rom but couldn't be written to the file count too.
 	public boolean isModified() {
-		for (MoveableDataRecord r : moveableDataRecords) {
-			if (r.modified) {
-				return true;
-			}
-		}
-		for (RegionRecord r : RegionRecord.regionRecords) {
-			if (r.modified)
-				return true;
-		}
-		return false;
+		return !modifiedRecords.isEmpty() || data.isDirty();
+	}
+
+	// Records register themselves here when their "modified" flag changes, so that checking for
+	// changes and saving only look at what was edited, not at every record that was loaded.
+	// The registry (the sets and maps below, and the free space map) is locked on the RomReader,
+	// so that independent parts of the rom can be loaded on different threads; see RomLoader.
+	HashSet<Record> modifiedRecords = new HashSet<Record>();
+	// MoveableDataRecords which have to be looked at on the next save: modified ones, ones with
+	// new pointers to write, and ones which may have to be deleted. Kept in the order they were added.
+	LinkedHashSet<MoveableDataRecord> dirtyRecords = new LinkedHashSet<MoveableDataRecord>();
+
+	synchronized void recordModified(Record r, boolean modified) {
+		if (modified)
+			modifiedRecords.add(r);
+		else
+			modifiedRecords.remove(r);
+	}
+	synchronized void markDirty(MoveableDataRecord r) {
+		dirtyRecords.add(r);
+	}
+	synchronized void markClean(MoveableDataRecord r) {
+		dirtyRecords.remove(r);
+	}
+	// Keeps recordLookupMap and recordIndex in sync when a record's address changes.
+	synchronized void recordMoved(MoveableDataRecord r, int oldAddr) {
+		if (oldAddr >= 0 && recordLookupMap.get(oldAddr) == r)
+			recordLookupMap.remove(oldAddr);
+		if (r.addr >= 0)
+			recordLookupMap.put(r.addr, r);
+		recordIndex.update(r);
+	}
+	// Keeps recordIndex in sync when a record's size changes without it moving.
+	synchronized void recordResized(MoveableDataRecord r) {
+		recordIndex.update(r);
 	}
 	
 	// I am not very cautious of records not synced with the rom.
-	// If records are overwritten in other areas, they will still be in this arraylist.
-	ArrayList<MoveableDataRecord> moveableDataRecords = new ArrayList<MoveableDataRecord>();
-	// Parallel arrayList, counting the number of times the record has been accessed.
-	ArrayList<Integer> moveableDataRecordAccesses = new ArrayList<Integer>();
+	// If records are overwritten in other areas, they will still be in this set.
+	// It keeps the order records were added in, and removing a record doesn't shift the others.
+	LinkedHashSet<MoveableDataRecord> moveableDataRecords = new LinkedHashSet<MoveableDataRecord>();
 
+	// Current address -> record, kept up to date by recordMoved().
 	HashMap<Integer, MoveableDataRecord> recordLookupMap = new HashMap<Integer, MoveableDataRecord>();
+	// Which records take up which bytes.
+	RecordIndex recordIndex = new RecordIndex();
+	// Pointer location -> the record it points to. A pointer is only supposed to belong to one
+	// record; if two records claim it, they'd overwrite each other's address on saving.
+	HashMap<RomPointer, Record> pointerIndex = new HashMap<RomPointer, Record>();
+	// Holding record -> the records with a TYPE_RECORD pointer stored in it, for following
+	// deletions (see getRecordsPointedFrom()). Kept up to date by pointerAdded() and pointerRemoved().
+	HashMap<MoveableDataRecord, LinkedHashSet<MoveableDataRecord>> pointedFrom =
+		new HashMap<MoveableDataRecord, LinkedHashSet<MoveableDataRecord>>();
+
+	// Every RegionRecord, and the ones read from the rom by warp table address; see RegionRecord.get().
+	LinkedHashSet<RegionRecord> regionRecords = new LinkedHashSet<RegionRecord>();
+	HashMap<Integer, RegionRecord> regionRecordMap = new HashMap<Integer, RegionRecord>();
+	int numPointerConflicts = 0;
 	
 	ArrayList<JoinedRecord> joinedRecords = new ArrayList<JoinedRecord>();
 
-	public MoveableDataRecord moveableDataRecordExists(int addr) {
-		for (int i=0; i<moveableDataRecords.size(); i++) {
-			MoveableDataRecord r = moveableDataRecords.get(i);
-			if (r.getAddr() == addr)
-				return r;
-		}
-		return null;
+	public synchronized MoveableDataRecord moveableDataRecordExists(int addr) {
+		if (addr < 0)
+			return null;
+		return recordLookupMap.get(addr);
 	}
 	// If no pointer is specified, the record will be marked as unmoveable. Otherwise it's moveable.
-	public MoveableDataRecord getMoveableDataRecord(int addr, RomPointer ptr, boolean compressed, int size)
+	public synchronized MoveableDataRecord getMoveableDataRecord(int addr, RomPointer ptr, boolean compressed, int size)
 	{
 		if (addr < 0) {
 			System.out.println("getMoveableDataRecord negative addr");
@@ -112,10 +196,9 @@ public class RomReader {
 
 		MoveableDataRecord r = recordLookupMap.get(addr);
 		if (r != null) {
-			int i = moveableDataRecords.indexOf(r);
 			if (ptr != null)
 				r.addPtr(ptr);
-			moveableDataRecordAccesses.set(i, moveableDataRecordAccesses.get(i)+1);
+			r.accesses++;
 			return r;
 		}
 		else {
@@ -124,64 +207,140 @@ public class RomReader {
 				pointers.add(ptr);
 			r = new MoveableDataRecord(addr, pointers, compressed, size);
 			moveableDataRecords.add(r);
-			moveableDataRecordAccesses.add(1);
 			recordLookupMap.put(addr, r);
+			recordIndex.update(r);
 
 			r.setMoveable(ptr != null);
 
 			return r;
 		}
 	}
-	public MoveableDataRecord getMoveableDataRecord(int addr, RomPointer ptr, boolean compressed, int size, int bank)
+	public synchronized MoveableDataRecord getMoveableDataRecord(int addr, RomPointer ptr, boolean compressed, int size, int bank)
 	{
 		MoveableDataRecord r = getMoveableDataRecord(addr, ptr, compressed, size);
 		r.setRequiredBank(bank);
 		return r;
 	}
 	// Make a new record from this data
-	public MoveableDataRecord getMoveableDataRecord(byte[] data, RomPointer pointer, int bank, boolean compressed)
+	public synchronized MoveableDataRecord getMoveableDataRecord(byte[] data, RomPointer pointer, int bank, boolean compressed)
 	{
 		ArrayList<RomPointer> pointers = new ArrayList<RomPointer>();
 		if (pointer != null)
 			pointers.add(pointer);
 		MoveableDataRecord r = new MoveableDataRecord(data, pointers, bank, compressed);
 		moveableDataRecords.add(r);
-		moveableDataRecordAccesses.add(1);
 		r.setMoveable(pointer != null);
 		return r;
 	}
 
-	void updateRecordLookupMap() {
-		recordLookupMap = new HashMap<Integer, MoveableDataRecord>();
-		for (MoveableDataRecord r : moveableDataRecords) {
-			if (r.addr >= 0) {
-				recordLookupMap.put(r.addr, r);
-			}
-		}
-	}
-
 	// This function will only take effect when called as many times as the record in question has been
 	// accessed from getMoveableDataRecord().
 	// So basically, everything which has accessed the record has to "agree" to delete it.
 	// This function is intended to be used for corrupt records - records which didn't read the kind of data
 	// that it expected to read...
-	public void deleteMoveableDataRecord(MoveableDataRecord record) {
-		int i = moveableDataRecords.indexOf(record);
-		int accesses = moveableDataRecordAccesses.get(i) - 1;
-		moveableDataRecordAccesses.set(i, accesses);
-		if (accesses == 0) {
+	public synchronized void deleteMoveableDataRecord(MoveableDataRecord record) {
+		record.accesses--;
+		if (record.accesses == 0) {
 			logger.info("Record deleted: \n" +
-					"\"" + moveableDataRecords.get(i).getDescription() + "\"\n" +
-					" (0x" + RomReader.toHexString(moveableDataRecords.get(i).getAddr()) + ")");
-			moveableDataRecords.remove(i);
-			moveableDataRecordAccesses.remove(i);
-			if (record.addr >= 0)
-				recordLookupMap.remove(record.addr);
+					"\"" + record.getDescription() + "\"\n" +
+					" (0x" + RomReader.toHexString(record.getAddr()) + ")");
+			removeRecord(record);
 			// Note: the record's memory won't be unlocked, I guess that's okay?
 			// Since this is probably a corrupt record I don't want to risk unlocking the memory.
 		}
 	}
-	public JoinedRecord getJoinedRecord(MoveableDataRecord record1, MoveableDataRecord record2)
+	// Forget about a record entirely. Its space in the rom isn't touched.
+	synchronized void removeRecord(MoveableDataRecord r) {
+		moveableDataRecords.remove(r);
+		if (r.addr >= 0 && recordLookupMap.get(r.addr) == r)
+			recordLookupMap.remove(r.addr);
+		dirtyRecords.remove(r);
+		modifiedRecords.remove(r);
+		recordIndex.remove(r);
+		for (RomPointer ptr : r.ptrs)
+			removeHeldPointer(ptr, r);
+	}
+
+	synchronized void pointerAdded(RomPointer ptr, Record r) {
+		Record old = pointerIndex.put(ptr, r);
+		if (old != null && old != r && old.ptrs.contains(ptr)) {
+			numPointerConflicts++;
+			logger.warning("The " + ptr + " is claimed by both \"" + old.getDescription() +
+					"\" and \"" + r.getDescription() + "\"");
+		}
+		if (ptr.getType() == RomPointer.TYPE_RECORD && r instanceof MoveableDataRecord) {
+			addHeldPointer(ptr.ptrRecord, (MoveableDataRecord)r);
+			addHeldPointer(ptr.bankRecord, (MoveableDataRecord)r);
+		}
+	}
+	synchronized void pointerRemoved(RomPointer ptr, Record r) {
+		if (pointerIndex.get(ptr) == r)
+			pointerIndex.remove(ptr);
+		if (r instanceof MoveableDataRecord)
+			removeHeldPointer(ptr, (MoveableDataRecord)r);
+	}
+
+	void addHeldPointer(MoveableDataRecord holder, MoveableDataRecord r) {
+		if (holder == null)
+			return;
+		LinkedHashSet<MoveableDataRecord> set = pointedFrom.get(holder);
+		if (set == null) {
+			set = new LinkedHashSet<MoveableDataRecord>();
+			pointedFrom.put(holder, set);
+		}
+		set.add(r);
+	}
+	// Called once the pointer is out of r's set; r may still have others in the same holder.
+	void removeHeldPointer(RomPointer ptr, MoveableDataRecord r) {
+		if (ptr.getType() != RomPointer.TYPE_RECORD)
+			return;
+		for (MoveableDataRecord holder : new MoveableDataRecord[] {ptr.ptrRecord, ptr.bankRecord}) {
+			LinkedHashSet<MoveableDataRecord> set = pointedFrom.get(holder);
+			if (set == null || (moveableDataRecords.contains(r) && holdsPointerOf(holder, r)))
+				continue;
+			set.remove(r);
+			if (set.isEmpty())
+				pointedFrom.remove(holder);
+		}
+	}
+	static boolean holdsPointerOf(MoveableDataRecord holder, MoveableDataRecord r) {
+		for (RomPointer ptr : r.ptrs) {
+			if (ptr.getType() == RomPointer.TYPE_RECORD && (ptr.ptrRecord == holder || ptr.bankRecord == holder))
+				return true;
+		}
+		return false;
+	}
+	// The record which the pointer stored at the given location belongs to, or null.
+	public synchronized Record getPointerTarget(RomPointer location) {
+		return pointerIndex.get(location);
+	}
+	public int getNumPointerConflicts() {
+		return numPointerConflicts;
+	}
+
+	// The record whose space includes addr, or null.
+	public synchronized MoveableDataRecord getRecordAt(int addr) {
+		return recordIndex.get(addr);
+	}
+	// Every record whose space overlaps [start, end).
+	public synchronized ArrayList<MoveableDataRecord> getRecordsIn(int start, int end) {
+		return recordIndex.get(start, end);
+	}
+	// A copy of every record, for going through on another thread; iterating over the set itself
+	// could fail if a record is added or removed on the EDT meanwhile.
+	public synchronized ArrayList<MoveableDataRecord> getRecords() {
+		return new ArrayList<MoveableDataRecord>(moveableDataRecords);
+	}
+	// Logs a warning for every pair of records which claim the same bytes, since saving either
+	// one would corrupt the other. Returns the number of overlaps found.
+	public synchronized int auditRecordOverlaps() {
+		ArrayList<String> overlaps = recordIndex.findOverlaps();
+		for (String s : overlaps)
+			logger.warning("Record overlap: " + s);
+		return overlaps.size();
+	}
+
+	public synchronized JoinedRecord getJoinedRecord(MoveableDataRecord record1, MoveableDataRecord record2)
 	{
 		JoinedRecord j = new JoinedRecord(record1, record2);
 		joinedRecords.add(j);
@@ -189,26 +348,32 @@ public class RomReader {
 	}
 
 	public void clearRecords() {
-		RegionRecord.regionRecords = new ArrayList<RegionRecord>();
+		regionRecords = new LinkedHashSet<RegionRecord>();
+		regionRecordMap = new HashMap<Integer, RegionRecord>();
 		joinedRecords = new ArrayList<JoinedRecord>();
-		moveableDataRecords = new ArrayList<MoveableDataRecord>();
-		moveableDataRecordAccesses = new ArrayList<Integer>();
+		moveableDataRecords = new LinkedHashSet<MoveableDataRecord>();
 		recordLookupMap = new HashMap<Integer, MoveableDataRecord>();
+		recordIndex = new RecordIndex();
+		pointerIndex = new HashMap<RomPointer, Record>();
+		pointedFrom = new HashMap<MoveableDataRecord, LinkedHashSet<MoveableDataRecord>>();
+		numPointerConflicts = 0;
+		modifiedRecords = new HashSet<Record>();
+		dirtyRecords = new LinkedHashSet<MoveableDataRecord>();
 	}
 	
 	public int read(int addr)
 	{
-		return data[addr]&0xff;
+		return data.read(addr);
 	}
 	
 	public int read16(int addr)
 	{
-		return read(addr) | (read(addr+1)<<8);
+		return data.read16(addr);
 	}
 	
 	public int read16(int addr, int bank)
 	{
-		return BANK(read(addr) | (read(addr+1)<<8), bank);
+		return data.read16(addr, bank);
 	}
 	public int read16Indirect(int addr)
 	{
@@ -230,141 +395,72 @@ public class RomReader {
 	public byte[] readBytes(int addr, int numBytes)
 	{
 		byte[] output = new byte[numBytes];
-		for (int i=0; i<numBytes; i++)
-			output[i] = data[addr+i];
+		data.read(addr, output, 0, numBytes);
 		return output;
 	}
 	
-	public ArrayList<Byte> readRLE(int addr)
+	public byte[] readRLE(int addr)
 	{
-		int startAddr = addr;
-		ArrayList<Byte> output = new ArrayList<Byte>();
-		
-		int n=read(addr++);
-		while (n != 0) {
-			
-			if ((n&0x80) == 0x80)
-			{
-				n &= 0x7f;
-				for (int i=0; i<n; i++)
-				{
-					output.add((byte)read(addr++));
-				}
-			}
-			else
-			{
-				byte val = (byte)read(addr++);
-				for (int i=0; i<n; i++)
-				{
-					output.add(val);
-				}
-			}
-			n = read(addr++);
-		}
-		
-		return output;
+		return RleCodec.decode(data, addr);
 	}
-	public ArrayList<Byte> readRawRLE(int addr)
+	public byte[] readRawRLE(int addr)
 	{
-		ArrayList<Byte> output = new ArrayList<Byte>();
-		int startAddr=addr;
-		
-		byte n = data[addr++];
-		while (n != 0)
-		{
-			if ((n&0x80) == 0)
-				addr++;
-			else
-				addr += (n&0x7f);
-			n = data[addr++];
-		}
-		int size = addr-startAddr;
-		for (int i=startAddr; i<addr; i++)
-			output.add(data[i]);
-		return output;
+		return readBytes(addr, RleCodec.getEncodedSize(data, addr));
 	}
 	
-	public ArrayList<Byte> convertToRLE(ArrayList<Byte> bytes)
+	// Shared encoding buffer; the result is copied out of it. Locked while it's used, since the
+	// rom can be loaded on several threads.
+	RleCodec rleCodec = new RleCodec();
+
+	public ByteList convertToRLE(ByteList bytes)
 	{
-		ArrayList<Byte> output = new ArrayList<Byte>();
-		
-		for (int i=0; i<bytes.size(); i++)
-		{
-			int j=i;
-			byte val=bytes.get(j);
-			int length=0;
-			
-			while (j < bytes.size() && length < 0x7f && bytes.get(j) == val)
-			{
-				j++;
-				length++;
-			}
-			
-			if (length == 1)
-			{
-				ArrayList<Byte> toAdd = new ArrayList<Byte>();
-				toAdd.add(val);
-				
-				while (j < bytes.size() && toAdd.size() < 0x7f)
-				{
-					int nextLength=0;
-					byte nextVal = bytes.get(j);
-					while (j < bytes.size() && bytes.get(j) == nextVal)
-					{
-						j++;
-						nextLength++;
-					}
-					if (nextLength <= 2)
-					{
-						int t=nextLength;
-						while (t-- != 0 && toAdd.size() < 0x7f)
-							toAdd.add(nextVal);
-						if (t == 0)
-							j--;
-					}
-					else
-					{
-						j -= nextLength;
-						break;
-					}
-				}
-				output.add((byte)(0x80|toAdd.size()));
-				output.addAll(toAdd);
-			}
-			else
-			{
-				output.add((byte)length);
-				output.add(val);
-			}
-			i = j-1;
+		synchronized (rleCodec) {
+			return convertToRLE(bytes, rleCodec);
+		}
+	}
+	// Codecs aren't thread-safe, so threads encoding at the same time each pass their own.
+	ByteList convertToRLE(ByteList bytes, RleCodec codec)
+	{
+		return convertToRLE(bytes, codec, optimalCompression);
+	}
+	static ByteList convertToRLE(ByteList bytes, RleCodec codec, boolean optimal)
+	{
+		int start = bytes.offset;
+		int end = bytes.offset+bytes.size;
+		codec.setOptimal(optimal);
+		int size = codec.encode(bytes.data, start, end);
+		if (optimal && !RleCodec.verify(bytes.data, start, end, codec.getBuffer(), size)) {
+			logger.severe("Optimal RLE encoding failed verification, using the greedy encoding instead");
+			codec.setOptimal(false);
+			size = codec.encode(bytes.data, start, end);
+		}
+		return new ByteList(codec.getBuffer(), 0, size);
+	}
+	// Same as convertToRLE(bytes).size(), without building the output.
+	public int getRLESize(ByteList bytes)
+	{
+		synchronized (rleCodec) {
+			rleCodec.setOptimal(optimalCompression);
+			return rleCodec.getEncodedSize(bytes.data, bytes.offset, bytes.offset+bytes.size);
 		}
-		
-		output.add((byte)0);
-		return output;
 	}
 	
 	public int getFreeSpaceLength(int addr)
 	{
-		int size=0;
-		while (free[addr] && (addr%0x4000 != 0 || size == 0))
-		{
-			addr++;
-			size++;
-		}
-		return size;
+		return free.getFreeSpaceLength(addr);
 	}
 	
 	public void write(int addr, byte val)
 	{
-		data[addr] = val;
+		data.write(addr, val);
 	}
 	
 	public void writePtr(int addr, int val)
 	{
 		val &= 0x3fff;
 		val += 0x4000;
-		data[addr] = (byte)(val&0xff);
-		data[addr+1] = (byte)(val>>8);
+		data.write(addr, (byte)(val&0xff));
+		data.write(addr+1, (byte)(val>>8));
 	}
 	
 	public void write(int addr, ArrayList<Byte> data)
@@ -374,21 +470,20 @@ public class RomReader {
 			write(i+addr, data.get(i));
 		}
 	}
+	public void write(int addr, ByteList list)
+	{
+		data.write(addr, list.data, list.offset, list.size);
+	}
 	
-	public void clear(int addr, int bytes)
+	public synchronized void clear(int addr, int bytes)
 	{
 		for (int i=0; i<bytes; i++)
-		{
 			write(addr+i, (byte)0xff);
-			free[addr+i] = true;
-		}
+		free.markFree(addr, bytes);
 	}
-	public void lock(int addr, int bytes)
+	public synchronized void lock(int addr, int bytes)
 	{
-		for (int i=0; i<bytes; i++)
-		{
-			free[addr+i] = false;
-		}
+		free.markUsed(addr, bytes);
 	}
 
 	boolean[] packedBanks;
@@ -403,11 +498,13 @@ public class RomReader {
 		ArrayList<MoveableDataRecord> records = new ArrayList<MoveableDataRecord>();
 
 		for (MoveableDataRecord r : moveableDataRecords) {
-			if (r.isMoveable && r.requiredBank == bank) {
+			if (r.isMoveable && r.requiredBank == bank)
 				records.add(r);
-				r.detachFromOriginalSpace();
-			}
 		}
+		// Records can be registered in any order when loading, so go by address
+		Collections.sort(records, addressOrder);
+		for (MoveableDataRecord r : records)
+			r.detachFromOriginalSpace();
 
 		for (MoveableDataRecord r : records) {
 			// Some of these records may have been iterated through already in the save() function.
@@ -418,89 +515,418 @@ public class RomReader {
 		}
 	}
 
+	// Records by address; records without one go last, in the order they were in.
+	final static Comparator<MoveableDataRecord> addressOrder = new Comparator<MoveableDataRecord>() {
+		public int compare(MoveableDataRecord r1, MoveableDataRecord r2) {
+			return addressKey(r1.addr) - addressKey(r2.addr);
+		}
+	};
+	static int addressKey(int addr) {
+		return addr < 0 ? Integer.MAX_VALUE : addr;
+	}
+
 	public boolean packedBank(int bank) {
 		return packedBanks[bank];
 	}
+
+	// Move every moveable record so that the records in each bank sit together, leaving each
+	// bank's free space in as few pieces as possible. Within a bank, records are placed largest
+	// first, each at the lowest address it fits (first-fit decreasing). Records stay in their bank
+	// unless it can't hold them and they aren't required to be there.
+	// The layout is planned on a copy of the free space map first, so if anything doesn't fit
+	// nothing is changed. Otherwise the rom is saved.
+	// Returns a report of the largest free extent in each bank, before and after.
+	public String repack() {
+		saveFail = false;
+		saveResult = new SaveResult();
+
+		ArrayList<MoveableDataRecord> records = new ArrayList<MoveableDataRecord>();
+		for (MoveableDataRecord r : moveableDataRecords) {
+			if (r.isMoveable && r.addr >= 0 && !r.isNull())
+				records.add(r);
+		}
+		// Tile and object data have to stay in the same bank as each other. This is only used
+		// for the plan; the records are given these banks once the plan has worked.
+		HashMap<MoveableDataRecord, Integer> joinedBanks = new HashMap<MoveableDataRecord, Integer>();
+		for (JoinedRecord j : joinedRecords) {
+			if (j.r1.requiredBank < 0 && j.r2.requiredBank < 0 && j.r1.addr >= 0) {
+				joinedBanks.put(j.r1, j.r1.addr/0x4000);
+				joinedBanks.put(j.r2, j.r1.addr/0x4000);
+			}
+			else if (j.r1.requiredBank < 0)
+				joinedBanks.put(j.r1, j.r2.requiredBank);
+			else if (j.r2.requiredBank < 0)
+				joinedBanks.put(j.r2, j.r1.requiredBank);
+		}
+
+		SavePlanner.encodeRecords(records, saveThreads);
+		Collections.sort(records, new Comparator<MoveableDataRecord>() {
+			public int compare(MoveableDataRecord r1, MoveableDataRecord r2) {
+				if (r1.getSize() != r2.getSize())
+					return r2.getSize() - r1.getSize();
+				return r1.addr - r2.addr;
+			}
+		});
+
+		int[] before = new int[banks];
+		for (int b=0; b<banks; b++)
+			before[b] = free.getLargestFreeExtent(b);
+
+		FreeSpaceMap plan = new FreeSpaceMap(free);
+		for (MoveableDataRecord r : records)
+			plan.markFree(r.addr, r.originalSize);
+
+		HashMap<MoveableDataRecord, Integer> newAddrs = new HashMap<MoveableDataRecord, Integer>();
+		ArrayList<MoveableDataRecord> overflow = new ArrayList<MoveableDataRecord>();
+		for (MoveableDataRecord r : records) {
+			int requiredBank = joinedBanks.containsKey(r) ? joinedBanks.get(r) : r.requiredBank;
+			int bank = requiredBank >= 0 ? requiredBank : r.addr/0x4000;
+			int addr = findFreeSpace(plan, ALLOC_FIRST_FIT, r.getSize(), new int[] {bank}, true);
+			if (addr >= 0)
+				newAddrs.put(r, addr);
+			else if (requiredBank < 0)
+				overflow.add(r);
+			else {
+				saveError("Repacking failed: \"" + r.getDescription() + "\" (" + toHexString(r.getSize()) +
+					" bytes) doesn't fit in bank " + toHexString(bank, 2) + ". Nothing was changed.");
+				return saveResult.getReport();
+			}
+		}
+		for (MoveableDataRecord r : overflow) {
+			int addr = findFreeSpace(plan, ALLOC_FIRST_FIT, r.getSize(), true);
+			if (addr < 0) {
+				saveError("Repacking failed: no space for \"" + r.getDescription() + "\" (" +
+					toHexString(r.getSize()) + " bytes). Nothing was changed.");
+				return saveResult.getReport();
+			}
+			newAddrs.put(r, addr);
+		}
+
+		// The plan worked, so do it for real
+		for (Map.Entry<MoveableDataRecord, Integer> e : joinedBanks.entrySet())
+			e.getKey().requiredBank = e.getValue();
+		int moved = 0;
+		for (MoveableDataRecord r : records) {
+			if (newAddrs.get(r) != r.addr)
+				moved++;
+			r.detachFromOriginalSpace();
+		}
+		for (MoveableDataRecord r : records) {
+			int addr = newAddrs.get(r);
+			r.setAddr(addr);
+			// Claim the space, so that nothing else saved before this record takes it
+			r.originalSize = r.getSize();
+			lock(addr, r.originalSize);
+		}
+		// The records can't be put back where they were: saving may already have moved some of
+		// them again and written their pointers. The file is only written if everything worked.
+		saveRecords();
+		if (saveFail)
+			return "Repacking failed while saving, after the records had been taken out of their old " +
+				"places. The rom file wasn't changed, but the rom in memory is only partly repacked; " +
+				"reopen the rom without saving to go back to the file as it was.\n\n" + saveResult.getReport();
+		writeFile();
+		if (saveFail)
+			return "The records were repacked, but the rom file couldn't be written. Saving again " +
+				"will try to write it.\n\n" + saveResult.getReport();
+
+		String s = moved + " of " + records.size() + " records moved.\n" +
+			"Largest free space per bank, before -> after:\n";
+		for (int b=0; b<banks; b++) {
+			int after = free.getLargestFreeExtent(b);
+			if (before[b] == 0 && after == 0)
+				continue;
+			s += "Bank " + toHexString(b, 2) + ": " + toHexString(before[b]) + " -> " + toHexString(after) + "\n";
+		}
+		logger.info(s);
+		return s;
+	}
 	
-	public void save()
+	// Works out where save() would put every record, without changing anything.
+	public SavePlan planSave() {
+		return SavePlanner.plan(this);
+	}
+
+	// Saves with the placements from the plan. If anything has changed since the plan was made,
+	// it's out of date and this is the same as save().
+	public SaveResult save(SavePlan plan) {
+		saveRecords(plan);
+		if (saveFail)
+			return saveResult;
+		return writeFile();
+	}
+
+	// saveRecords(), with the placements from the plan.
+	SaveResult saveRecords(SavePlan plan) {
+		if (plan.willFail()) {
+			saveResult = new SaveResult();
+			saveFail = false;
+			for (String e : plan.getErrors())
+				saveError(e);
+			return saveResult;
+		}
+		if (!plan.isCurrent(this)) {
+			logger.info("Save plan is out of date, saving without it");
+			return saveRecords();
+		}
+
+		// Claim the planned space for each moved record, so that save() finds it fits there
+		ArrayList<SavePlan.Placement> moved = new ArrayList<SavePlan.Placement>();
+		for (SavePlan.Placement p : plan.getMovedRecords()) {
+			if (p.isDeleted())
+				continue;
+			moved.add(p);
+			p.record.requiredBank = p.requiredBank;
+			if (p.record.addr >= 0)
+				p.record.detachFromOriginalSpace();
+		}
+		for (SavePlan.Placement p : moved) {
+			p.record.setAddr(p.newAddr);
+			p.record.originalSize = p.newSize;
+			lock(p.newAddr, p.newSize);
+		}
+		return saveRecords();
+	}
+
+	// The result of the last save
+	SaveResult saveResult = new SaveResult();
+
+	public SaveResult getSaveResult() {
+		return saveResult;
+	}
+
+	// Records an error which stops the save.
+	void saveError(String message) {
+		logger.severe(message);
+		saveResult.addError(message);
+		saveFail = true;
+	}
+
+	// Saves every change to the rom file. Nothing is shown to the user; the result has the
+	// warnings and errors, and savedSuccessfully() says whether the rom was written.
+	public SaveResult save()
 	{
-		for (int l=0; l<Level.NUM_LEVELS; l++) {
-			Level level = Level.getLevel(l);
-			Region r = level.getRegionDataRecord().checkUnsavableRegions();
-			if (r != null) {
-				JOptionPane.showMessageDialog(null,
-						"Warning: region in level " + RomReader.toHexString(level.getId(),2) +
-						" can't be saved.\n" +
-						"Region's top-left-sector: " + RomReader.toHexString(r.firstVSector*0xa+r.firstHSector) + "\n\n" +
-						"To fix this, make a sector destination point to a sector within this region.\n\n" +
-						"The rom will still be saved.",
-						"Warning",
-						JOptionPane.WARNING_MESSAGE);
-			}
+		saveRecords();
+		if (saveFail)
+			return saveResult;
+		return writeFile();
+	}
+
+	// The last part of save(): writes the bytes changed by saveRecords() to the file.
+	SaveResult writeFile()
+	{
+		saveResult.startPhase(SaveResult.PHASE_WRITE);
+		try {
+			// Only the bytes which were changed since the last save go to the file.
+			data.flush(atomicSave);
+		}
+		catch(IOException e) {
+			saveError("There was an error writing to the rom file: " + e.getMessage() + ". The rom was not saved.");
 		}
+		saveResult.endPhase();
+		logger.info(saveResult.getTimingReport());
+		return saveResult;
+	}
 
+	// Everything save() does except writing the file: the records are placed and written
+	// into the rom, and the checksum is fixed.
+	SaveResult saveRecords()
+	{
+		saveResult = new SaveResult();
 		packedBanks = new boolean[256];
 		saveFail = false;
 
-		// Iterate through all records and delete those which we can, to free up space
-		for (int i=0; i<moveableDataRecords.size(); i++) {
-			MoveableDataRecord r = moveableDataRecords.get(i);
-			if (r.isNull()) {
-				// It will free up the memory it took in the save() function
-				r.save();
-				moveableDataRecords.remove(i);
-				moveableDataRecordAccesses.remove(i);
-				if (r.addr >= 0)
-					recordLookupMap.remove(r.addr);
-				i--;
+		saveResult.startPhase(SaveResult.PHASE_REGIONS);
+		// Only levels which were loaded can have had their regions changed
+		List<Level> levels = session != null ? session.getLoadedLevels() : new ArrayList<Level>();
+		for (Level level : levels) {
+			Region r = level.getRegionDataRecord().checkUnsavableRegions();
+			if (r != null) {
+				String message = "Region in level " + RomReader.toHexString(level.getId(),2) +
+						" can't be saved (top-left sector " + RomReader.toHexString(r.firstVSector*0xa+r.firstHSector) + "). " +
+						"To fix this, make a sector destination point to a sector within this region.";
+				logger.warning(message);
+				saveResult.addWarning(message);
 			}
 		}
 
 		// Check RegionRecords
 		// RegionRecord class takes care of removing invalid records
-		for (int i=0; i<RegionRecord.regionRecords.size(); i++) {
-			RegionRecord r = RegionRecord.regionRecords.get(i);
+		// Regions are edited directly, so every RegionRecord has to compare them; there are only
+		// as many of these as there are levels. This comes first since it may orphan warp records.
+		for (RegionRecord r : new ArrayList<RegionRecord>(regionRecords))
 			r.save();
+
+		saveResult.startPhase(SaveResult.PHASE_DELETE);
+		// Delete the records which we can, to free up space.
+		// Only dirty records can have lost pointers; but when a record is deleted, the pointers
+		// stored in it go away too, so the records they point to have to be checked next.
+		HashSet<MoveableDataRecord> deleted = new HashSet<MoveableDataRecord>();
+		ArrayList<MoveableDataRecord> candidates = new ArrayList<MoveableDataRecord>(dirtyRecords);
+		while (!candidates.isEmpty()) {
+			LinkedHashSet<MoveableDataRecord> newlyDeleted = new LinkedHashSet<MoveableDataRecord>();
+			for (MoveableDataRecord r : candidates) {
+				if (!deleted.contains(r) && r.isNull()) {
+					// It will free up the memory it took in the save() function
+					r.save();
+					removeRecord(r);
+					newlyDeleted.add(r);
+				}
+			}
+			deleted.addAll(newlyDeleted);
+			candidates = getRecordsPointedFrom(newlyDeleted);
 		}
-		for (int i=0; i<joinedRecords.size(); i++)
-		{
-			if (joinedRecords.get(i).r1.isNull() && joinedRecords.get(i).r2.isNull()) {
-				joinedRecords.remove(i);
-				i--;
+
+		// Save each record before the records holding its pointers, so they only have to be
+		// written once. Packing a bank can still dirty records outside of the plan, so plan
+		// again until nothing is left.
+		savingInOrder = true;
+		try {
+			saveResult.startPhase(SaveResult.PHASE_ENCODE);
+			SavePlanner.encodeRecords(dirtyRecords, saveThreads);
+			saveResult.startPhase(SaveResult.PHASE_PLACE);
+			for (int i=0; i<joinedRecords.size(); i++)
+			{
+				JoinedRecord j = joinedRecords.get(i);
+				if (deleted.contains(j.r1) && deleted.contains(j.r2)) {
+					joinedRecords.remove(i);
+					i--;
+				}
+				else if (dirtyRecords.contains(j.r1) || dirtyRecords.contains(j.r2))
+					j.save();
+			}
+
+			// Records which have to move to their required bank give up their space first, so
+			// that each bank's placements only depend on that bank (see SavePlanner.planBanks()).
+			for (MoveableDataRecord r : new ArrayList<MoveableDataRecord>(dirtyRecords)) {
+				if (r.isMoveable && r.requiredBank >= 0 && r.addr >= 0 && r.addr/0x4000 != r.requiredBank)
+					r.detachFromOriginalSpace();
+			}
+
+			for (int pass=0; !dirtyRecords.isEmpty() && !saveFail; pass++) {
+				if (pass == MAX_SAVE_PASSES) {
+					saveError("Records are still changing after " + MAX_SAVE_PASSES + " passes, giving up.");
+					break;
+				}
+				// Encode everything up front, in parallel, so the serial part only places and writes
+				SavePlanner.encodeRecords(dirtyRecords, saveThreads);
+				SaveOrder order = new SaveOrder(dirtyRecords);
+				saveRequiredBanks(order);
+				if (saveFail)
+					break;
+				for (ArrayList<MoveableDataRecord> component : order.components) {
+					saveComponent(component);
+					if (saveFail)
+						break;
+				}
 			}
-			else
-				joinedRecords.get(i).save();
 		}
-		for (int i=0; i<moveableDataRecords.size() && !saveFail; i++) {
-			MoveableDataRecord r = moveableDataRecords.get(i);
-			r.save();
+		finally {
+			savingInOrder = false;
+			saveResult.endPhase();
 		}
-
-		updateRecordLookupMap();
 		
 		if (saveFail) {
-			return;
+			return saveResult;
 		}
 
+		saveResult.fragmentationReport = getFragmentationReport();
+		logger.fine(saveResult.fragmentationReport);
+
+		saveResult.startPhase(SaveResult.PHASE_CHECKSUM);
 		fixRomChecksum();
-		try {
-			FileOutputStream out = new FileOutputStream(file);
-			out.write(data);
-			out.close();
+		saveResult.endPhase();
+		return saveResult;
+	}
+
+	// While set, saving a record doesn't immediately re-save the records holding its pointers;
+	// SaveOrder has already put them later in the order.
+	boolean savingInOrder = false;
+	final static int MAX_SAVE_PASSES = 16;
+
+	// Records required to be in a bank are saved before the others, bank by bank, in the same
+	// order SavePlanner plans them.
+	void saveRequiredBanks(SaveOrder order) {
+		TreeMap<Integer, ArrayList<MoveableDataRecord>> banks = new TreeMap<Integer, ArrayList<MoveableDataRecord>>();
+		for (ArrayList<MoveableDataRecord> component : order.components) {
+			for (MoveableDataRecord r : component) {
+				if (r.requiredBank < 0 || !dirtyRecords.contains(r))
+					continue;
+				ArrayList<MoveableDataRecord> group = banks.get(r.requiredBank);
+				if (group == null) {
+					group = new ArrayList<MoveableDataRecord>();
+					banks.put(r.requiredBank, group);
+				}
+				group.add(r);
+			}
+		}
+		for (ArrayList<MoveableDataRecord> group : banks.values()) {
+			for (MoveableDataRecord r : group) {
+				if (dirtyRecords.contains(r)) {
+					r.save();
+					if (saveFail)
+						return;
+				}
+			}
+		}
+	}
+	// Save a group of records which hold each other's pointers, until none of them change.
+	void saveComponent(ArrayList<MoveableDataRecord> component) {
+		for (int round=0; round<MAX_SAVE_PASSES; round++) {
+			boolean saved = false;
+			for (MoveableDataRecord r : component) {
+				if (dirtyRecords.contains(r)) {
+					r.save();
+					saved = true;
+					if (saveFail)
+						return;
+				}
+			}
+			if (!saved)
+				return;
 		}
-		catch(FileNotFoundException e) {}
-		catch(IOException e){}
+	}
+
+	// Records with a TYPE_RECORD pointer stored in any of the given records.
+	synchronized ArrayList<MoveableDataRecord> getRecordsPointedFrom(Set<MoveableDataRecord> holders) {
+		LinkedHashSet<MoveableDataRecord> ret = new LinkedHashSet<MoveableDataRecord>();
+		for (MoveableDataRecord holder : holders) {
+			LinkedHashSet<MoveableDataRecord> set = pointedFrom.get(holder);
+			if (set == null)
+				continue;
+			// Records which have been removed from the rom are left out
+			for (MoveableDataRecord r : set) {
+				if (moveableDataRecords.contains(r))
+					ret.add(r);
+			}
+		}
+		return new ArrayList<MoveableDataRecord>(ret);
+	}
+
+	// An IPS patch from the rom file as it was opened to the rom file as it is now. Only the
+	// bytes which were written to since opening are looked at, and they're read back from the
+	// file, so changes which haven't been saved (or whose save failed) aren't included, and
+	// neither are bytes which were changed back.
+	public byte[] createIpsPatch() throws IOException {
+		return IpsPatch.create(data.original, data.readSavedRanges());
 	}
 
 	public boolean savedSuccessfully() {
 		return saveFail == false;
 	}
 	
+	// The checksum is kept up to date as the rom is written to, so this doesn't have to sum
+	// the whole rom. With verifyChecksum set it's recomputed anyway, to check the running value.
 	public int getRomChecksum() {
-		int sum=0;
-		for (int i=0; i<data.length; i++) {
-			if (i != 0x14e && i != 0x14f)
-				sum += data[i]&0xff;
+		int sum = data.getChecksum();
+		if (verifyChecksum) {
+			int fullSum = data.computeChecksum();
+			if (fullSum != sum) {
+				logger.severe("Running checksum " + toHexString(sum&0xffff) +
+						" doesn't match the real checksum " + toHexString(fullSum&0xffff));
+				data.checksum = fullSum;
+				sum = fullSum;
+			}
 		}
 		return sum&0xffff;
 	}
@@ -512,43 +938,79 @@ public class RomReader {
 	
 	public int findFreeSpace(int size, boolean claim)
 	{
-		for (int b=0; b<preferredFreeBanks.length; b++) {
-			int addr = findFreeSpace(size, preferredFreeBanks[b], claim);
-			if (addr != -1)
-				return addr;
-		}
-		for (int b=0; b<banks; b++)
-		{
-			int addr = findFreeSpace(size, b, claim);
-			if (addr != -1)
-				return addr;
-		}
-		return -1;
+		return findFreeSpace(free, allocationPolicy, size, claim);
+	}
+	int findFreeSpace(int size, int[] bankList, boolean claim)
+	{
+		return findFreeSpace(free, allocationPolicy, size, bankList, claim);
 	}
 	public int findFreeSpace(int size, int bank, boolean claim)
 	{
-		int b = bank;
-		for (int addr=b*0x4000; addr<(b+1)*0x4000; addr++)
-		{
-			int length=0;
-			int start = addr;
-			while (addr < (b+1)*0x4000 && free[addr])
-			{
-				addr++;
-				length++;
-			}
+		int start = free.find(allocationPolicy, size, bank);
+		if (start >= 0 && claim)
+			free.markUsed(start, size);
+		return start;
+	}
 
-			if (length >= size)
-			{
-				if (claim)
-				{
-					for (int i=start; i<start+size; i++)
-						free[i] = false;
-				}
-				return start;
+	// The same searches on any free space map, so that layouts can be planned on a copy.
+	int findFreeSpace(FreeSpaceMap map, int policy, int size, boolean claim)
+	{
+		int addr = findFreeSpace(map, policy, size, preferredFreeBanks, claim);
+		if (addr != -1)
+			return addr;
+		int[] allBanks = new int[banks];
+		for (int b=0; b<banks; b++)
+			allBanks[b] = b;
+		return findFreeSpace(map, policy, size, allBanks, claim);
+	}
+	int findFreeSpace(FreeSpaceMap map, int policy, int size, int[] bankList, boolean claim)
+	{
+		int best = -1;
+		for (int b=0; b<bankList.length; b++) {
+			int addr = map.find(policy, size, bankList[b]);
+			if (addr == -1)
+				continue;
+			if (policy == ALLOC_FIRST_FIT || policy == ALLOC_SEGREGATED_FIT) {
+				best = addr;
+				break;
 			}
+			// Best and worst fit compare the chosen hole of every bank
+			if (best == -1)
+				best = addr;
+			else if (policy == ALLOC_BEST_FIT && map.getFreeSpaceLength(addr) < map.getFreeSpaceLength(best))
+				best = addr;
+			else if (policy == ALLOC_WORST_FIT && map.getFreeSpaceLength(addr) > map.getFreeSpaceLength(best))
+				best = addr;
 		}
-		return -1;
+		if (best >= 0 && claim)
+			map.markUsed(best, size);
+		return best;
+	}
+
+	// Free space statistics for each bank which has any free space.
+	public String getFragmentationReport() {
+		return getFragmentationReport(free, allocationPolicy);
+	}
+	// The same for a planned free space map (see SavePlan).
+	static String getFragmentationReport(FreeSpaceMap map, int policy) {
+		String s = "Free space (" + allocationPolicyNames[policy] + "):\n";
+		int totalHoles = 0;
+		for (int b=0; b<map.getNumBanks(); b++) {
+			int holes = map.getNumHoles(b);
+			if (holes == 0)
+				continue;
+			totalHoles += holes;
+			s += "Bank " + toHexString(b, 2) + ": " + toHexString(map.getFreeBytes(b)) + " bytes free, " +
+				"largest " + toHexString(map.getLargestFreeExtent(b)) + ", " + holes + " holes\n";
+		}
+		s += totalHoles + " holes total";
+		return s;
+	}
+	public int getLargestFreeExtent(int bank) {
+		return free.getLargestFreeExtent(bank);
+	}
+	public int getNumHoles(int bank) {
+		return free.getNumHoles(bank);
 	}
 
 	public static int BANK(int addr, int bank)
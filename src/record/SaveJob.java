@@ -0,0 +1,194 @@
+package record;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+// SaveJob: a save split up so that the slow parts can run on a background thread.
+//  1. The constructor (on the EDT) makes a SavePlanner, which copies what it needs to know about
+//     the records, and copies the data of every dirty record which needs encoding.
+//  2. encode() (any thread) encodes the copies. It never looks at the live records.
+//  3. plan() (any thread) works out where the records go from the copies (see SavePlanner).
+//  4. apply() (on the EDT) hands the encodings to the records which haven't changed since, then
+//     places them and writes the pointers as saveRecords(SavePlan) would. If anything was edited
+//     after step 1 the plan is out of date, and it's just planned again here.
+//  5. write() (any thread) writes the changed bytes, copied out in apply(), to the file.
+//  6. finish() (on the EDT) gives the changes back to the rom if the write failed.
+// Editing can go on during 2, 3 and 5; anything edited during the write is saved next time.
+public class SaveJob {
+	final static Logger logger = Logger.getLogger(SaveJob.class.getName());
+
+	public interface Progress {
+		// done out of total records or bytes, for the named stage
+		void progress(String stage, int done, int total);
+	}
+
+	static class Snapshot {
+		MoveableDataRecord record;
+		ByteList data;
+		int version;
+		ByteList encoded;
+	}
+
+	RomReader rom;
+	SavePlanner planner;
+	SavePlan plan;
+	ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+	boolean optimal;
+	boolean atomic;
+	int threads;
+
+	SaveResult result;
+	RomBuffer.Changes changes;
+	int checksum;
+	long encodeTime;
+	long planTime;
+	long writeTime;
+
+	public SaveJob(RomReader rom) {
+		this.rom = rom;
+		optimal = rom.optimalCompression;
+		atomic = rom.atomicSave;
+		threads = rom.saveThreads;
+		planner = new SavePlanner(rom);
+		for (MoveableDataRecord r : planner.unsized) {
+			Snapshot s = new Snapshot();
+			s.record = r;
+			RecordSnapshot snapshot = r.getSnapshot();
+			s.data = snapshot.getData();
+			s.version = snapshot.version;
+			snapshots.add(s);
+		}
+	}
+
+	public void encode(Progress progress) {
+		long start = System.nanoTime();
+		int total = snapshots.size();
+		if (threads <= 1 || total < SavePlanner.MIN_PARALLEL_RECORDS) {
+			RleCodec codec = new RleCodec();
+			for (int i=0; i<total; i++) {
+				Snapshot s = snapshots.get(i);
+				s.encoded = RomReader.convertToRLE(s.data, codec, optimal);
+				progress.progress("Encoding", i+1, total);
+			}
+			encodeTime = System.nanoTime()-start;
+			return;
+		}
+
+		// Small chunks, so progress moves steadily
+		int chunk = Math.max(1, total/(threads*8));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i=0; i<total; i+=chunk) {
+				final List<Snapshot> group = snapshots.subList(i, Math.min(i+chunk, total));
+				results.add(pool.submit(new Callable<Integer>() {
+					public Integer call() {
+						RleCodec codec = new RleCodec();
+						for (Snapshot s : group)
+							s.encoded = RomReader.convertToRLE(s.data, codec, optimal);
+						return group.size();
+					}
+				}));
+			}
+			int done = 0;
+			for (Future<Integer> f : results) {
+				done += f.get();
+				progress.progress("Encoding", done, total);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			// Anything which wasn't encoded will just be encoded when it's saved
+			logger.warning("Error encoding records: " + e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		encodeTime = System.nanoTime()-start;
+	}
+
+	public void plan(Progress progress) {
+		long start = System.nanoTime();
+		progress.progress("Planning", 0, 1);
+		boolean encoded = true;
+		for (Snapshot s : snapshots) {
+			if (s.encoded != null)
+				planner.setSize(s.record, s.encoded.size());
+			else
+				encoded = false;
+		}
+		// Without every size apply() will just plan it itself
+		if (encoded) {
+			try {
+				plan = planner.run();
+			}
+			catch (RuntimeException e) {
+				logger.warning("Error planning save: " + e);
+			}
+		}
+		planTime = System.nanoTime()-start;
+		progress.progress("Planning", 1, 1);
+	}
+
+	public SaveResult apply() {
+		for (Snapshot s : snapshots) {
+			if (s.encoded != null)
+				s.record.setCompressedData(s.encoded, s.version, optimal);
+		}
+		snapshots.clear();
+
+		// Anything edited since the planner was made could go somewhere else now
+		if (plan == null || !plan.isCurrent(rom)) {
+			logger.fine("Save plan is out of date, planning again");
+			plan = rom.planSave();
+		}
+		result = rom.saveRecords(plan);
+		result.phaseTimes[SaveResult.PHASE_ENCODE] += encodeTime;
+		result.phaseTimes[SaveResult.PHASE_PLACE] += planTime;
+		if (result.succeeded()) {
+			changes = rom.data.takeChanges();
+			checksum = rom.getRomChecksum();
+		}
+		return result;
+	}
+
+	public void write(Progress progress) {
+		if (changes == null)
+			return;
+		long start = System.nanoTime();
+		progress.progress("Writing", 0, 1);
+		try {
+			RomBuffer.write(changes, atomic);
+		}
+		catch (IOException e) {
+			result.addError("There was an error writing to the rom file: " + e.getMessage() + ". The rom was not saved.");
+		}
+		writeTime = System.nanoTime()-start;
+		progress.progress("Writing", 1, 1);
+	}
+
+	public SaveResult finish() {
+		result.phaseTimes[SaveResult.PHASE_WRITE] += writeTime;
+		if (changes != null && !result.succeeded()) {
+			logger.severe(result.getReport());
+			rom.data.restoreChanges(changes);
+			rom.saveFail = true;
+		}
+		logger.info(result.getTimingReport());
+		return result;
+	}
+
+	public SaveResult getResult() {
+		return result;
+	}
+
+	// The checksum of the rom as it was written, which the metadata file should record. The
+	// rom may have been edited since.
+	public int getChecksum() {
+		return checksum;
+	}
+}
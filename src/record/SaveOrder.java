@@ -0,0 +1,74 @@
+package record;
+
+import java.util.*;
+
+// SaveOrder: puts records in the order they should be saved.
+// A record's address is stored in the records holding its pointers, so a record has to be
+// saved (placed) before the records holding its pointers are written. This builds that
+// dependency graph, starting from the given records and following pointer holders, and sorts it
+// topologically. Records which depend on each other in a cycle are grouped together; saving
+// a group has to be repeated until none of its records change any more.
+class SaveOrder {
+	// Groups of records, in the order they should be saved
+	ArrayList<ArrayList<MoveableDataRecord>> components = new ArrayList<ArrayList<MoveableDataRecord>>();
+
+	// Tarjan's algorithm state
+	HashMap<MoveableDataRecord, Integer> index = new HashMap<MoveableDataRecord, Integer>();
+	HashMap<MoveableDataRecord, Integer> lowLink = new HashMap<MoveableDataRecord, Integer>();
+	ArrayDeque<MoveableDataRecord> stack = new ArrayDeque<MoveableDataRecord>();
+	HashSet<MoveableDataRecord> onStack = new HashSet<MoveableDataRecord>();
+	int nextIndex = 0;
+
+	SaveOrder(Collection<MoveableDataRecord> records) {
+		for (MoveableDataRecord r : new ArrayList<MoveableDataRecord>(records)) {
+			if (!index.containsKey(r))
+				visit(r);
+		}
+		// Tarjan's algorithm finishes a group only after every group it leads to, so holders
+		// come out before the records they point to. Saving goes the other way.
+		Collections.reverse(components);
+	}
+
+	// The records holding pointers to r.
+	static ArrayList<MoveableDataRecord> getHolders(MoveableDataRecord r) {
+		ArrayList<MoveableDataRecord> ret = new ArrayList<MoveableDataRecord>();
+		for (RomPointer ptr : r.ptrs) {
+			if (ptr.getType() != RomPointer.TYPE_RECORD)
+				continue;
+			ret.add(ptr.ptrRecord);
+			if (ptr.bankRecord != null && ptr.bankRecord != ptr.ptrRecord)
+				ret.add(ptr.bankRecord);
+		}
+		return ret;
+	}
+
+	void visit(MoveableDataRecord r) {
+		index.put(r, nextIndex);
+		lowLink.put(r, nextIndex);
+		nextIndex++;
+		stack.push(r);
+		onStack.add(r);
+
+		for (MoveableDataRecord holder : getHolders(r)) {
+			if (!index.containsKey(holder)) {
+				visit(holder);
+				lowLink.put(r, Math.min(lowLink.get(r), lowLink.get(holder)));
+			}
+			else if (onStack.contains(holder))
+				lowLink.put(r, Math.min(lowLink.get(r), index.get(holder)));
+		}
+
+		if (lowLink.get(r).equals(index.get(r))) {
+			ArrayList<MoveableDataRecord> component = new ArrayList<MoveableDataRecord>();
+			MoveableDataRecord s;
+			do {
+				s = stack.pop();
+				onStack.remove(s);
+				component.add(s);
+			} while (s != r);
+			// Within a group, keep the order the records were visited in
+			Collections.reverse(component);
+			components.add(component);
+		}
+	}
+}
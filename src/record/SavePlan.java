@@ -0,0 +1,156 @@
+package record;
+
+import java.util.*;
+
+// SavePlan: what RomReader.save() would do, worked out without changing anything.
+// It lists where every record which would be written goes, how much free space each bank
+// gains or loses, and the errors which would stop the save. RomReader.save(SavePlan) carries
+// it out, as long as nothing has changed since it was made.
+public class SavePlan {
+	public static class Placement {
+		MoveableDataRecord record;
+		int oldAddr, oldSize;
+		// newAddr is -1 if the record is deleted
+		int newAddr, newSize;
+		// The bank the record is required to be in after saving
+		int requiredBank;
+		// The record's version when the plan was made
+		int version;
+		// Copied from the record, so planning doesn't have to look at it
+		boolean moveable, modified;
+		String description;
+
+		Placement(MoveableDataRecord r) {
+			record = r;
+			oldAddr = r.addr;
+			oldSize = r.originalSize;
+			newAddr = r.addr;
+			requiredBank = r.requiredBank;
+			version = r.version;
+			moveable = r.isMoveable;
+			modified = r.modified;
+			description = r.getDescription();
+		}
+		Placement(Placement p) {
+			record = p.record;
+			oldAddr = p.oldAddr;
+			oldSize = p.oldSize;
+			newAddr = p.newAddr;
+			newSize = p.newSize;
+			requiredBank = p.requiredBank;
+			version = p.version;
+			moveable = p.moveable;
+			modified = p.modified;
+			description = p.description;
+		}
+
+		public MoveableDataRecord getRecord() {
+			return record;
+		}
+		public int getOldAddr() {
+			return oldAddr;
+		}
+		public int getNewAddr() {
+			return newAddr;
+		}
+		public int getNewSize() {
+			return newSize;
+		}
+		public boolean isMoved() {
+			return newAddr != oldAddr;
+		}
+		public boolean isDeleted() {
+			return newAddr < 0;
+		}
+
+		public String toString() {
+			String s = "\"" + record.getDescription() + "\": ";
+			if (isDeleted())
+				return s + "deleted from " + RomReader.toHexString(oldAddr);
+			if (oldAddr < 0)
+				s += "new";
+			else
+				s += RomReader.toHexString(oldAddr) + " (" + RomReader.toHexString(oldSize) + " bytes)";
+			return s + " -> " + RomReader.toHexString(newAddr) + " (" + RomReader.toHexString(newSize) + " bytes)";
+		}
+	}
+
+	ArrayList<Placement> placements = new ArrayList<Placement>();
+	HashMap<MoveableDataRecord, Placement> placementMap = new HashMap<MoveableDataRecord, Placement>();
+	ArrayList<String> errors = new ArrayList<String>();
+	ArrayList<Integer> packedBanks = new ArrayList<Integer>();
+	int[] freeBefore, freeAfter;
+	// The free space the save would leave; see RomReader.getFragmentationReport()
+	String fragmentationReport = "";
+
+	// What the plan depends on
+	HashSet<MoveableDataRecord> dirtyRecords;
+	int allocationPolicy;
+	boolean optimalCompression;
+
+	// For the plan of a single bank, which is merged into the real one (see SavePlanner.planBanks())
+	SavePlan() {
+	}
+	SavePlan(RomReader rom) {
+		dirtyRecords = new HashSet<MoveableDataRecord>(rom.dirtyRecords);
+		allocationPolicy = rom.allocationPolicy;
+		optimalCompression = rom.optimalCompression;
+	}
+
+	public List<Placement> getPlacements() {
+		return Collections.unmodifiableList(placements);
+	}
+	public ArrayList<Placement> getMovedRecords() {
+		ArrayList<Placement> ret = new ArrayList<Placement>();
+		for (Placement p : placements) {
+			if (p.isMoved())
+				ret.add(p);
+		}
+		return ret;
+	}
+	public List<String> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+	public boolean willFail() {
+		return !errors.isEmpty();
+	}
+	public String getFragmentationReport() {
+		return fragmentationReport;
+	}
+	// Free bytes gained by the bank; negative if it loses free space.
+	public int getBankChange(int bank) {
+		return freeAfter[bank]-freeBefore[bank];
+	}
+
+	// True if the rom is still in the state the plan was made for.
+	public boolean isCurrent(RomReader rom) {
+		if (allocationPolicy != rom.allocationPolicy || optimalCompression != rom.optimalCompression)
+			return false;
+		if (!dirtyRecords.equals(new HashSet<MoveableDataRecord>(rom.dirtyRecords)))
+			return false;
+		for (Placement p : placements) {
+			if (p.record.version != p.version || p.record.addr != p.oldAddr)
+				return false;
+		}
+		return true;
+	}
+
+	public String getReport() {
+		String s = "";
+		for (String e : errors)
+			s += "Error: " + e + "\n";
+		for (int b : packedBanks)
+			s += "Bank " + RomReader.toHexString(b, 2) + " has to be packed\n";
+		for (Placement p : getMovedRecords())
+			s += p + "\n";
+		for (int b=0; b<freeBefore.length; b++) {
+			int change = getBankChange(b);
+			if (change != 0)
+				s += "Bank " + RomReader.toHexString(b, 2) + ": " + (change > 0 ? "+" : "-") +
+					RomReader.toHexString(Math.abs(change)) + " bytes free\n";
+		}
+		if (s.length() == 0)
+			s = "Nothing has to be moved.\n";
+		return s;
+	}
+}
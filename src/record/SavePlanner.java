@@ -0,0 +1,526 @@
+package record;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+// SavePlanner: the part of saving which can be done before anything in the rom is touched.
+// The slow part of laying out records is encoding the compressed ones, which needs to happen
+// before a record's size is known. Records are grouped by the bank they're required to be in
+// and each group is encoded on its own thread.
+//
+// plan() goes further and works out where everything would be placed, on a copy of the free
+// space map, without changing any records or the rom. Records required to be in a bank only
+// compete with each other for it, so those banks are planned at the same time on a ForkJoinPool
+// (see planBanks()); records which can go anywhere are placed after them, one at a time.
+// RomReader.save(SavePlan) then writes the records and pointers on one thread.
+//
+// The constructor copies everything planning needs to know about the rom and its records, on
+// the thread which edits them. After that run() only looks at the copies, so it can be called
+// on any thread while editing goes on; SaveJob plans in the background this way. Records whose
+// encoding is out of date have no size until they're encoded, either in place by encode() or
+// from a copy of their data (see setSize()).
+class SavePlanner {
+	final static Logger logger = Logger.getLogger(SavePlanner.class.getName());
+
+	// Not worth starting threads for less than this
+	final static int MIN_PARALLEL_RECORDS = 8;
+
+	// Encodes every compressed record which doesn't have a valid encoding yet.
+	static void encodeRecords(Collection<MoveableDataRecord> records, int threads) {
+		// requiredBank -> records
+		TreeMap<Integer, ArrayList<MoveableDataRecord>> groups = new TreeMap<Integer, ArrayList<MoveableDataRecord>>();
+		int count = 0;
+		for (MoveableDataRecord r : records) {
+			if (r.type != MoveableDataRecord.RECORD_COMPRESSED || r.compressedDataValid())
+				continue;
+			ArrayList<MoveableDataRecord> group = groups.get(r.requiredBank);
+			if (group == null) {
+				group = new ArrayList<MoveableDataRecord>();
+				groups.put(r.requiredBank, group);
+			}
+			group.add(r);
+			count++;
+		}
+		if (count == 0)
+			return;
+		if (threads <= 1 || count < MIN_PARALLEL_RECORDS) {
+			RleCodec codec = new RleCodec();
+			for (ArrayList<MoveableDataRecord> group : groups.values())
+				encodeGroup(group, codec);
+			return;
+		}
+
+		// Records which can go in any bank don't depend on each other either, so split them up
+		ArrayList<MoveableDataRecord> anyBank = groups.remove(-1);
+		ArrayList<ArrayList<MoveableDataRecord>> tasks = new ArrayList<ArrayList<MoveableDataRecord>>(groups.values());
+		if (anyBank != null) {
+			int chunk = (anyBank.size()+threads-1)/threads;
+			for (int i=0; i<anyBank.size(); i+=chunk)
+				tasks.add(new ArrayList<MoveableDataRecord>(anyBank.subList(i, Math.min(i+chunk, anyBank.size()))));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+		try {
+			ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (final ArrayList<MoveableDataRecord> group : tasks) {
+				results.add(pool.submit(new Callable<Object>() {
+					public Object call() {
+						encodeGroup(group, new RleCodec());
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : results)
+				f.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			// Anything which wasn't encoded will just be encoded when it's saved
+			logger.warning("Error encoding records: " + e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	static void encodeGroup(ArrayList<MoveableDataRecord> group, RleCodec codec) {
+		for (MoveableDataRecord r : group)
+			r.getCompressedData(codec);
+	}
+
+	RomReader rom;
+	SavePlan plan;
+	FreeSpaceMap map;
+	int policy;
+	int threads;
+	// Records which have been placed already
+	HashSet<MoveableDataRecord> done = new HashSet<MoveableDataRecord>();
+	LinkedHashSet<MoveableDataRecord> deleted = new LinkedHashSet<MoveableDataRecord>();
+
+	// Every record the plan could touch, as it was when the planner was made: the dirty ones,
+	// the ones they'd delete, joined records, and every one packBank() could move. The bank
+	// planners share these, read only; the plan itself gets copies (see getPlacement()).
+	HashMap<MoveableDataRecord, SavePlan.Placement> records = new HashMap<MoveableDataRecord, SavePlan.Placement>();
+	// The same records, in the order the rom keeps them, which is the order packBank() goes by
+	ArrayList<MoveableDataRecord> recordOrder = new ArrayList<MoveableDataRecord>();
+	// The dirty records, in the order they'd be saved (see SaveOrder)
+	ArrayList<MoveableDataRecord> ordered = new ArrayList<MoveableDataRecord>();
+	ArrayList<JoinedRecord> joined = new ArrayList<JoinedRecord>();
+
+	// The size each record will be saved at. getSize() can encode a record, or build its run
+	// table, so it's only called when the planner is made; the rest are filled in by encode() or
+	// setSize(). The bank planners share this map, read only.
+	HashMap<MoveableDataRecord, Integer> sizes = new HashMap<MoveableDataRecord, Integer>();
+	// Records which have no size yet
+	ArrayList<MoveableDataRecord> unsized = new ArrayList<MoveableDataRecord>();
+
+	// Only for planning a single bank: the bank, the records to place, and every record
+	// packBank() would look at. Otherwise -1 and null.
+	int singleBank = -1;
+	ArrayList<MoveableDataRecord> bankGroup;
+	ArrayList<MoveableDataRecord> bankRecords;
+
+	// Only on the thread which edits the rom.
+	SavePlanner(RomReader rom) {
+		this.rom = rom;
+		plan = new SavePlan(rom);
+		map = new FreeSpaceMap(rom.free);
+		policy = rom.allocationPolicy;
+		threads = rom.saveThreads;
+
+		// Records which would be deleted. Only dirty records can have lost pointers; deleting a
+		// record takes the pointers stored in it too, so the records they point to are next.
+		ArrayList<MoveableDataRecord> candidates = new ArrayList<MoveableDataRecord>(rom.dirtyRecords);
+		while (!candidates.isEmpty()) {
+			LinkedHashSet<MoveableDataRecord> newlyDeleted = new LinkedHashSet<MoveableDataRecord>();
+			for (MoveableDataRecord r : candidates) {
+				if (!deleted.contains(r) && r.wouldBeNull())
+					newlyDeleted.add(r);
+			}
+			deleted.addAll(newlyDeleted);
+			candidates = rom.getRecordsPointedFrom(newlyDeleted);
+		}
+
+		HashSet<MoveableDataRecord> needed = new HashSet<MoveableDataRecord>(rom.dirtyRecords);
+		needed.addAll(deleted);
+		for (JoinedRecord j : rom.joinedRecords) {
+			if (rom.dirtyRecords.contains(j.r1) || rom.dirtyRecords.contains(j.r2)) {
+				joined.add(j);
+				needed.add(j.r1);
+				needed.add(j.r2);
+			}
+		}
+		for (ArrayList<MoveableDataRecord> component : new SaveOrder(rom.dirtyRecords).components) {
+			for (MoveableDataRecord r : component) {
+				if (rom.dirtyRecords.contains(r))
+					ordered.add(r);
+			}
+		}
+
+		for (MoveableDataRecord r : rom.getRecords()) {
+			if (needed.remove(r) || (r.isMoveable && r.requiredBank >= 0))
+				addRecord(r);
+		}
+		// Anything which isn't in the rom's list any more
+		for (MoveableDataRecord r : needed)
+			addRecord(r);
+	}
+	void addRecord(MoveableDataRecord r) {
+		records.put(r, new SavePlan.Placement(r));
+		recordOrder.add(r);
+		if (deleted.contains(r))
+			return;
+		// Records with a run table know their encoded size without being encoded
+		if (r.type == MoveableDataRecord.RECORD_COMPRESSED && !r.compressedDataValid() && !r.usesRunTable())
+			unsized.add(r);
+		else
+			sizes.put(r, r.getSize());
+	}
+	// Plans one bank for planBanks(), starting from where the parent's plan is.
+	SavePlanner(SavePlanner parent, int bank, ArrayList<MoveableDataRecord> group,
+			ArrayList<MoveableDataRecord> bankRecords) {
+		rom = parent.rom;
+		plan = new SavePlan();
+		map = new FreeSpaceMap(parent.map, bank);
+		policy = parent.policy;
+		records = parent.records;
+		sizes = parent.sizes;
+		singleBank = bank;
+		bankGroup = group;
+		this.bankRecords = bankRecords;
+
+		plan.packedBanks.addAll(parent.plan.packedBanks);
+		ArrayList<MoveableDataRecord> records = new ArrayList<MoveableDataRecord>(group);
+		records.addAll(bankRecords);
+		for (MoveableDataRecord r : records) {
+			if (parent.done.contains(r))
+				done.add(r);
+			SavePlan.Placement p = parent.plan.placementMap.get(r);
+			if (p != null && !plan.placementMap.containsKey(r)) {
+				p = new SavePlan.Placement(p);
+				plan.placements.add(p);
+				plan.placementMap.put(r, p);
+			}
+		}
+	}
+
+	// Goes through the same steps as RomReader.save(), in the same order, but only on the plan.
+	// Data which the save itself would change (pointers written into other records, regions
+	// written into warp records) isn't known yet, so those records are planned at their current size.
+	static SavePlan plan(RomReader rom) {
+		SavePlanner planner = new SavePlanner(rom);
+		planner.encode();
+		return planner.run();
+	}
+
+	// Encodes the records which have no size yet, in place. Only on the thread which edits the rom.
+	void encode() {
+		encodeRecords(unsized, threads);
+		for (MoveableDataRecord r : unsized)
+			sizes.put(r, r.getSize());
+		unsized.clear();
+	}
+	// The size of a record from the list of unsized ones, encoded from a copy of its data.
+	void setSize(MoveableDataRecord r, int size) {
+		sizes.put(r, size);
+	}
+
+	// Any thread, once every record has a size.
+	SavePlan run() {
+		plan.freeBefore = getFreeBytes();
+
+		for (MoveableDataRecord r : deleted) {
+			SavePlan.Placement p = getPlacement(r);
+			if (p.newAddr >= 0)
+				map.markFree(p.newAddr, p.oldSize);
+			p.newAddr = -1;
+			p.newSize = 0;
+		}
+		done.addAll(deleted);
+
+		// Joined records which don't fit where they are get a bank with room for both
+		for (JoinedRecord j : joined) {
+			if (done.contains(j.r1) || done.contains(j.r2))
+				continue;
+			if (!(fits(j.r1) && fits(j.r2))) {
+				int dest = rom.findFreeSpace(map, policy, getSize(j.r1)+getSize(j.r2), false);
+				getPlacement(j.r1).requiredBank = dest/0x4000;
+				getPlacement(j.r2).requiredBank = dest/0x4000;
+			}
+			save(j.r1);
+			save(j.r2);
+		}
+
+		// Same as in RomReader.saveRecords(): records which have to move to their required bank
+		// give up their space first.
+		for (MoveableDataRecord r : ordered) {
+			if (done.contains(r))
+				continue;
+			SavePlan.Placement p = getPlacement(r);
+			if (!p.moveable)
+				continue;
+			if (p.requiredBank >= 0 && p.newAddr >= 0 && p.newAddr/0x4000 != p.requiredBank) {
+				map.markFree(p.newAddr, p.newAddr == p.oldAddr ? p.oldSize : p.newSize);
+				p.newAddr = -1;
+				p.newSize = 0;
+			}
+		}
+
+		// Then the records required to be in a bank, bank by bank, and then the rest
+		TreeMap<Integer, ArrayList<MoveableDataRecord>> banks = new TreeMap<Integer, ArrayList<MoveableDataRecord>>();
+		for (MoveableDataRecord r : ordered) {
+			if (done.contains(r))
+				continue;
+			int bank = getPlacement(r).requiredBank;
+			if (bank < 0)
+				continue;
+			ArrayList<MoveableDataRecord> group = banks.get(bank);
+			if (group == null) {
+				group = new ArrayList<MoveableDataRecord>();
+				banks.put(bank, group);
+			}
+			group.add(r);
+		}
+		planBanks(banks);
+		for (MoveableDataRecord r : ordered)
+			save(r);
+
+		plan.freeAfter = getFreeBytes();
+		plan.fragmentationReport = RomReader.getFragmentationReport(map, policy);
+		return plan;
+	}
+
+	// Plans each bank's group of records. A bank's records only ever touch that bank of the map,
+	// as long as every record packBank() would move is in the bank already (or nowhere), so the
+	// banks are planned in parallel, each on a copy of its bank. Otherwise, or if it's not worth
+	// it, they're planned in order on the real map. Either way the result is the same.
+	void planBanks(TreeMap<Integer, ArrayList<MoveableDataRecord>> banks) {
+		HashMap<Integer, ArrayList<MoveableDataRecord>> bankRecords = new HashMap<Integer, ArrayList<MoveableDataRecord>>();
+		for (int bank : banks.keySet())
+			bankRecords.put(bank, new ArrayList<MoveableDataRecord>());
+		boolean independent = true;
+		for (MoveableDataRecord r : recordOrder) {
+			SavePlan.Placement p = peek(r);
+			int bank = p.requiredBank;
+			if (!p.moveable || !bankRecords.containsKey(bank) || deleted.contains(r))
+				continue;
+			bankRecords.get(bank).add(r);
+			if (!inBank(r, bank))
+				independent = false;
+		}
+		for (Map.Entry<Integer, ArrayList<MoveableDataRecord>> e : banks.entrySet()) {
+			for (MoveableDataRecord r : e.getValue()) {
+				if (!inBank(r, e.getKey()))
+					independent = false;
+			}
+		}
+
+		int threads = Math.min(this.threads, banks.size());
+		if (independent && threads > 1) {
+			ArrayList<SavePlanner> planners = new ArrayList<SavePlanner>();
+			ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (Map.Entry<Integer, ArrayList<MoveableDataRecord>> e : banks.entrySet()) {
+				final SavePlanner planner = new SavePlanner(this, e.getKey(), e.getValue(), bankRecords.get(e.getKey()));
+				planners.add(planner);
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						for (MoveableDataRecord r : planner.bankGroup)
+							planner.save(r);
+						return null;
+					}
+				});
+			}
+
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			boolean planned = false;
+			try {
+				for (Future<Object> f : pool.invokeAll(tasks))
+					f.get();
+				planned = true;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				logger.warning("Error planning banks: " + e.getCause());
+			}
+			finally {
+				pool.shutdown();
+			}
+			// The planners only changed their own copies, so if they failed the banks are just
+			// planned again below
+			if (planned) {
+				for (SavePlanner planner : planners)
+					merge(planner);
+				return;
+			}
+		}
+
+		for (ArrayList<MoveableDataRecord> group : banks.values()) {
+			for (MoveableDataRecord r : group)
+				save(r);
+		}
+	}
+
+	// True if the record is planned to be in the bank, or isn't placed yet.
+	boolean inBank(MoveableDataRecord r, int bank) {
+		int addr = peek(r).newAddr;
+		return addr < 0 || addr/0x4000 == bank;
+	}
+
+	// Takes the plan for a bank from its planner.
+	void merge(SavePlanner planner) {
+		for (SavePlan.Placement p : planner.plan.placements) {
+			SavePlan.Placement mine = plan.placementMap.get(p.record);
+			if (mine == null) {
+				plan.placements.add(p);
+				plan.placementMap.put(p.record, p);
+			}
+			else {
+				mine.newAddr = p.newAddr;
+				mine.newSize = p.newSize;
+				mine.requiredBank = p.requiredBank;
+			}
+		}
+		done.addAll(planner.done);
+		plan.errors.addAll(planner.plan.errors);
+		for (int b : planner.plan.packedBanks) {
+			if (!plan.packedBanks.contains(b))
+				plan.packedBanks.add(b);
+		}
+		map.takeBank(planner.map, planner.singleBank);
+	}
+
+	int[] getFreeBytes() {
+		int[] ret = new int[map.getNumBanks()];
+		for (int b=0; b<ret.length; b++)
+			ret[b] = map.getFreeBytes(b);
+		return ret;
+	}
+
+	// The record's placement in this plan, which starts as a copy of the one made with the planner.
+	SavePlan.Placement getPlacement(MoveableDataRecord r) {
+		SavePlan.Placement p = plan.placementMap.get(r);
+		if (p == null) {
+			p = new SavePlan.Placement(peek(r));
+			plan.placements.add(p);
+			plan.placementMap.put(r, p);
+		}
+		return p;
+	}
+	// Where the record is so far, without adding it to the plan.
+	SavePlan.Placement peek(MoveableDataRecord r) {
+		SavePlan.Placement p = plan.placementMap.get(r);
+		if (p == null)
+			p = records.get(r);
+		if (p == null)
+			throw new IllegalStateException("\"" + r.getDescription() + "\" wasn't copied when the planner was made");
+		return p;
+	}
+
+	int getSize(MoveableDataRecord r) {
+		Integer size = sizes.get(r);
+		if (size == null)
+			throw new IllegalStateException("\"" + peek(r).description + "\" has no size to plan with");
+		return size;
+	}
+
+	// Same as MoveableDataRecord.fitsInOriginalSpace(), for the record's planned position.
+	boolean fits(MoveableDataRecord r) {
+		SavePlan.Placement p = getPlacement(r);
+		int size = p.newAddr == p.oldAddr ? p.oldSize : p.newSize;
+		if (p.newAddr < 0)
+			return false;
+		if (p.requiredBank >= 0 && p.newAddr/0x4000 != p.requiredBank)
+			return false;
+		return getSize(r) <= size+map.getFreeSpaceLength(p.newAddr+size);
+	}
+
+	// Same as MoveableDataRecord.save().
+	void save(MoveableDataRecord r) {
+		if (done.contains(r))
+			return;
+		done.add(r);
+		SavePlan.Placement p = getPlacement(r);
+		// Records which were moved out of their space (by packBank(), or to go to their required
+		// bank) are saved even if they weren't modified, as detachFromOriginalSpace() marks them.
+		if (!p.modified && p.newAddr >= 0 && p.newAddr == p.oldAddr) {
+			p.newSize = p.oldSize;
+			return;
+		}
+
+		int size = p.newAddr == p.oldAddr ? p.oldSize : p.newSize;
+		if (p.newAddr >= 0)
+			map.markFree(p.newAddr, size);
+		if (fits(r)) {
+			p.newSize = getSize(r);
+			map.markUsed(p.newAddr, p.newSize);
+			return;
+		}
+		if (!p.moveable) {
+			plan.errors.add("Un-moveable data \"" + p.description + "\" at " +
+					RomReader.toHexString(p.oldAddr) + " is too big");
+			return;
+		}
+
+		int addr;
+		if (p.requiredBank >= 0) {
+			addr = map.find(policy, getSize(r), p.requiredBank);
+			if (addr < 0 && !plan.packedBanks.contains(p.requiredBank)) {
+				// The record has no address by then, so packBank() places it last
+				p.newAddr = -1;
+				p.newSize = 0;
+				packBank(p.requiredBank);
+				return;
+			}
+			if (addr >= 0)
+				map.markUsed(addr, getSize(r));
+		}
+		else
+			addr = rom.findFreeSpace(map, policy, getSize(r), true);
+		if (addr < 0) {
+			plan.errors.add("No space for \"" + p.description + "\" (" +
+					RomReader.toHexString(getSize(r)) + " bytes)");
+			return;
+		}
+		p.newAddr = addr;
+		p.newSize = getSize(r);
+	}
+
+	// Same as RomReader.packBank().
+	void packBank(int bank) {
+		plan.packedBanks.add(bank);
+		ArrayList<MoveableDataRecord> records = new ArrayList<MoveableDataRecord>();
+		for (MoveableDataRecord r : (bankRecords != null ? bankRecords : recordOrder)) {
+			SavePlan.Placement p = peek(r);
+			if (p.moveable && p.requiredBank == bank && !deleted.contains(r))
+				records.add(r);
+		}
+		// In the order RomReader.packBank() uses, by where they are at that point
+		Collections.sort(records, new Comparator<MoveableDataRecord>() {
+			public int compare(MoveableDataRecord r1, MoveableDataRecord r2) {
+				return RomReader.addressKey(getPlacement(r1).newAddr) -
+					RomReader.addressKey(getPlacement(r2).newAddr);
+			}
+		});
+		for (MoveableDataRecord r : records) {
+			SavePlan.Placement p = getPlacement(r);
+			// Records placed already take up their new size, even if they stayed where they were
+			if (p.newAddr >= 0)
+				map.markFree(p.newAddr, done.contains(r) ? p.newSize : p.oldSize);
+			p.newAddr = -1;
+			p.newSize = 0;
+			done.remove(r);
+		}
+		// Only this bank's errors stop it, so that banks can be planned in any order
+		int errors = plan.errors.size();
+		for (MoveableDataRecord r : records) {
+			save(r);
+			if (plan.errors.size() > errors)
+				return;
+		}
+	}
+}
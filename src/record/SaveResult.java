@@ -0,0 +1,94 @@
+package record;
+
+import java.util.*;
+
+// SaveResult: what happened during RomReader.save().
+// Saving doesn't show any dialogs itself; warnings (the rom was still saved) and errors (it
+// wasn't) are collected here for the caller to present, along with how long each phase took.
+public class SaveResult {
+	public final static int PHASE_REGIONS=0;
+	public final static int PHASE_DELETE=1;
+	public final static int PHASE_ENCODE=2;
+	public final static int PHASE_PLACE=3;
+	public final static int PHASE_CHECKSUM=4;
+	public final static int PHASE_WRITE=5;
+	public final static int NUM_PHASES=6;
+
+	public final static String[] phaseNames = {
+		"Regions",
+		"Delete",
+		"Encode",
+		"Place",
+		"Checksum",
+		"Write",
+	};
+
+	ArrayList<String> warnings = new ArrayList<String>();
+	ArrayList<String> errors = new ArrayList<String>();
+	// Free space left in each bank once the records were placed; empty if they weren't.
+	// See RomReader.getFragmentationReport().
+	String fragmentationReport = "";
+
+	// Nanoseconds spent in each phase
+	long[] phaseTimes = new long[NUM_PHASES];
+	int currentPhase = -1;
+	long phaseStart;
+
+	void startPhase(int phase) {
+		endPhase();
+		currentPhase = phase;
+		phaseStart = System.nanoTime();
+	}
+	void endPhase() {
+		if (currentPhase >= 0)
+			phaseTimes[currentPhase] += System.nanoTime()-phaseStart;
+		currentPhase = -1;
+	}
+
+	public void addWarning(String s) {
+		warnings.add(s);
+	}
+	public void addError(String s) {
+		errors.add(s);
+	}
+
+	public List<String> getWarnings() {
+		return Collections.unmodifiableList(warnings);
+	}
+	public List<String> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+	public boolean succeeded() {
+		return errors.isEmpty();
+	}
+	public String getFragmentationReport() {
+		return fragmentationReport;
+	}
+
+	public long getPhaseMillis(int phase) {
+		return phaseTimes[phase]/1000000;
+	}
+	public long getTotalMillis() {
+		long total = 0;
+		for (long t : phaseTimes)
+			total += t;
+		return total/1000000;
+	}
+
+	public String getTimingReport() {
+		String s = "Save took " + getTotalMillis() + "ms:";
+		for (int i=0; i<NUM_PHASES; i++)
+			s += " " + phaseNames[i] + " " + getPhaseMillis(i) + "ms" + (i+1 < NUM_PHASES ? "," : "");
+		return s;
+	}
+
+	// Errors, then warnings, one per paragraph.
+	public String getReport() {
+		String s = "";
+		for (String e : errors)
+			s += "Error: " + e + "\n\n";
+		for (String w : warnings)
+			s += "Warning: " + w + "\n\n";
+		return s.trim();
+	}
+}
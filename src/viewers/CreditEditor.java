@@ -17,7 +17,7 @@ import java.awt.event.*;
 
 public class CreditEditor extends JDialog implements PaletteEditorClient {
 
-	RomReader rom = RomReader.rom;
+	RomReader rom = RomReader.getRom();
 
 	public final static int textLocation = RomReader.parseInt("58:5d0f");
 	public final static int flagLocation = RomReader.parseInt("58:60e5");
@@ -138,6 +138,7 @@ public class LevelViewer extends JPanel  {
 						}
 					}
 
+					mainFrame.updateLayoutSpace();
 					repaint();
 				}
 			}
@@ -216,6 +217,7 @@ public class LevelViewer extends JPanel  {
 						setTile(cursorPos.x, cursorPos.y, tileSetViewer.selectedTile);
 					else
 						level.setObject(cursorPos.x, cursorPos.y, mainFrame.objectSetViewer.selectedObject);
+					mainFrame.updateLayoutSpace();
 				}
 				repaint();
 			}
@@ -264,6 +266,7 @@ public class LevelViewer extends JPanel  {
 			level.getObjectDataRecord().setData(objects);
 
 			level.generateImage();
+			mainFrame.updateLayoutSpace();
 			repaint();
 		}
 	}
@@ -279,6 +282,7 @@ public class LevelViewer extends JPanel  {
 			level.getObjectDataRecord().setData(objects);
 
 			level.generateImage();
+			mainFrame.updateLayoutSpace();
 			repaint();
 		}
 	}
@@ -303,6 +307,8 @@ public class LevelViewer extends JPanel  {
 		tileBuffer.add(tiles);
 		objectBuffer.add(objects);
 		undoBufferPos++;
+
+		mainFrame.updateLayoutSpace();
 	}
 
 
@@ -23,9 +23,13 @@ import java.awt.FlowLayout;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import record.RomReader;
 import record.RegionRecord;
+import record.SaveJob;
+import record.SavePlan;
+import record.SaveResult;
 
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -78,6 +82,24 @@ public class MainFrame extends JFrame
 	JCheckBox cropRight;
 	JCheckBox cropTop;
 	JCheckBox cropBottom;
+	JLabel layoutSpaceLabel;
+	// Menu items which are disabled while the rom is being saved in the background
+	JMenuItem openMenuItem;
+	JMenuItem repackMenuItem;
+	JMenuItem previewSaveMenuItem;
+
+	// Save settings from the menus. Each rom keeps its own, so they're given to every rom opened.
+	int allocationPolicy = RomReader.ALLOC_FIRST_FIT;
+	boolean optimalCompression = false;
+	boolean atomicSave = true;
+
+	void applySettings() {
+		if (rom == null)
+			return;
+		rom.allocationPolicy = allocationPolicy;
+		rom.optimalCompression = optimalCompression;
+		rom.atomicSave = atomicSave;
+	}
 	
 	boolean disableRegionListener = false;
 
@@ -147,6 +169,8 @@ public class MainFrame extends JFrame
 		levelEditPane.setLayout(new BoxLayout(levelEditPane, BoxLayout.X_AXIS));
 		Drawing.addComponent(levelEditPane, tileSetViewerPanel);
 		levelEditPane.add(objectSetViewerPanel);
+		layoutSpaceLabel = new JLabel();
+		tileSetViewerPanel.add(layoutSpaceLabel);
 		
 		ActionListener regionActionListener = new ActionListener() {
 			public void actionPerformed(ActionEvent e)
@@ -276,9 +300,118 @@ public class MainFrame extends JFrame
 		
 		JMenu fileMenu = new JMenu("File");
 		JMenuItem mntmOpen_1 = new JMenuItem("Open");
+		openMenuItem = mntmOpen_1;
 		fileMenu.add(mntmOpen_1);
 		JMenuItem mntmSave_1 = new JMenuItem("Save");
 		fileMenu.add(mntmSave_1);
+		JMenuItem exportPatchButton = new JMenuItem("Export IPS Patch");
+		exportPatchButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e)
+			{
+				if (rom == null || refuseWhileSaving("Export IPS Patch"))
+					return;
+				if (rom.isModified()) {
+					JOptionPane.showMessageDialog(null,
+							"The patch goes from the rom as it was opened to the rom file as it was last saved.\n" +
+							"Changes which haven't been saved aren't included.",
+							"Export IPS Patch",
+							JOptionPane.INFORMATION_MESSAGE);
+				}
+				byte[] patch;
+				try {
+					patch = rom.createIpsPatch();
+				}
+				catch (IOException ex) {
+					JOptionPane.showMessageDialog(null,
+							"The rom file couldn't be read: " + ex.getMessage(),
+							"Export IPS Patch",
+							JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				RomReader.exportData(patch, "Export IPS Patch",
+						new FileNameExtensionFilter("IPS patch (.ips)", "ips"));
+			}
+		});
+		fileMenu.add(exportPatchButton);
+		JMenuItem repackButton = new JMenuItem("Repack ROM");
+		repackMenuItem = repackButton;
+		repackButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e)
+			{
+				if (rom == null || refuseWhileSaving("Repack ROM"))
+					return;
+				int option = JOptionPane.showConfirmDialog(null,
+						"This moves data around to defragment the rom's free space, then saves the rom.\n" +
+						"Continue?",
+						"Repack ROM",
+						JOptionPane.YES_NO_OPTION);
+				if (option != JOptionPane.YES_OPTION)
+					return;
+
+				String report = rom.repack();
+				if (rom.savedSuccessfully()) {
+					ValueFileParser.saveMetadataFile();
+					ValueFileParser.reloadValueFiles();
+				}
+				JTextArea text = new JTextArea(report, 20, 40);
+				text.setEditable(false);
+				JOptionPane.showMessageDialog(null, new JScrollPane(text), "Repack ROM",
+						rom.savedSuccessfully() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+				updateLayoutSpace();
+			}
+		});
+		fileMenu.add(repackButton);
+		JMenuItem previewSaveButton = new JMenuItem("Preview Save");
+		previewSaveMenuItem = previewSaveButton;
+		previewSaveButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e)
+			{
+				if (rom == null || refuseWhileSaving("Preview Save"))
+					return;
+				SavePlan plan = rom.planSave();
+				JTextArea text = new JTextArea(plan.getReport() + "\n" + plan.getFragmentationReport(), 20, 40);
+				text.setEditable(false);
+				JOptionPane.showMessageDialog(null, new JScrollPane(text), "Preview Save",
+						plan.willFail() ? JOptionPane.ERROR_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+		fileMenu.add(previewSaveButton);
+
+		// Choose how moved data is placed in free space when saving
+		JMenu allocationMenu = new JMenu("Free Space Allocation");
+		ButtonGroup allocationGroup = new ButtonGroup();
+		for (int i=0; i<RomReader.allocationPolicyNames.length; i++) {
+			final int policy = i;
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(RomReader.allocationPolicyNames[i]);
+			item.setSelected(allocationPolicy == policy);
+			item.addActionListener(new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					allocationPolicy = policy;
+					applySettings();
+				}
+			});
+			allocationGroup.add(item);
+			allocationMenu.add(item);
+		}
+		fileMenu.add(allocationMenu);
+		final JCheckBoxMenuItem optimalCompressionCheckBox = new JCheckBoxMenuItem("Optimal Compression");
+		optimalCompressionCheckBox.setSelected(optimalCompression);
+		optimalCompressionCheckBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				optimalCompression = optimalCompressionCheckBox.isSelected();
+				applySettings();
+			}
+		});
+		fileMenu.add(optimalCompressionCheckBox);
+		final JCheckBoxMenuItem atomicSaveCheckBox = new JCheckBoxMenuItem("Safe Save (Write to Copy)");
+		atomicSaveCheckBox.setSelected(atomicSave);
+		atomicSaveCheckBox.addItemListener(new ItemListener() {
+			public void itemStateChanged(ItemEvent e) {
+				atomicSave = atomicSaveCheckBox.isSelected();
+				applySettings();
+			}
+		});
+		fileMenu.add(atomicSaveCheckBox);
 		
 		JMenu viewMenu = new JMenu("View");
 		viewObjectCheckBox = new JCheckBoxMenuItem("Objects");
@@ -604,6 +737,9 @@ public class MainFrame extends JFrame
 			public void mousePressed(MouseEvent arg0) {
 				if ((arg0.getButton() & MouseEvent.BUTTON1) != 0) 
 				{
+					// Disabled menu items still get mouse events
+					if (refuseWhileSaving("Open"))
+						return;
 					JFileChooser fc = new JFileChooser();
 					ExampleFileFilter filter = new ExampleFileFilter();
 					filter.addExtension("gb");
@@ -640,11 +776,7 @@ public class MainFrame extends JFrame
 			{
 				if (e.getButton() == MouseEvent.BUTTON1)
 				{
-					rom.save();
-					if (rom.savedSuccessfully()) {
-						ValueFileParser.saveMetadataFile();
-						ValueFileParser.reloadValueFiles();
-					}
+					saveRomInBackground();
 				}
 			}
 		});
@@ -654,6 +786,14 @@ public class MainFrame extends JFrame
 			public void windowClosing(WindowEvent e) {
 				setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
+				if (saving) {
+					JOptionPane.showMessageDialog(null,
+							"The rom is still being saved.",
+							"Exit",
+							JOptionPane.PLAIN_MESSAGE);
+					setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+					return;
+				}
 				if (rom != null && rom.isModified()) {
 					int retval = savePrompt();
 					if (retval != 0) {
@@ -668,6 +808,8 @@ public class MainFrame extends JFrame
 	}
 
 	int savePrompt() {
+		if (refuseWhileSaving("Exit"))
+			return 1;
 		int option = JOptionPane.showOptionDialog(null,
 				"Save the rom before exiting?",
 				"Exit",
@@ -680,14 +822,10 @@ public class MainFrame extends JFrame
 		if (option == JOptionPane.CANCEL_OPTION)
 			return 1;
 		else if (option == JOptionPane.YES_OPTION) {
-			rom.save();
-			if (rom.savedSuccessfully()) {
-				ValueFileParser.saveMetadataFile();
+			if (saveRom())
 				return 0;
-			}
-			else {
+			else
 				return 1;
-			}
 		}
 		else if (option == JOptionPane.NO_OPTION)
 			return 0;
@@ -695,6 +833,151 @@ public class MainFrame extends JFrame
 		return 1;
 	}
 
+	// Saves the rom and the metadata file, then shows any warnings or errors.
+	// Returns true if the rom was saved.
+	boolean saveRom() {
+		SaveResult result = rom.save();
+		if (result.succeeded() && !ValueFileParser.saveMetadataFile())
+			result.addWarning("The metadata file couldn't be written. Don't lose the rom's metadata!");
+		showSaveResult(result);
+		return result.succeeded();
+	}
+
+	boolean saving = false;
+
+	void setSaving(boolean s) {
+		saving = s;
+		openMenuItem.setEnabled(!s);
+		repackMenuItem.setEnabled(!s);
+		previewSaveMenuItem.setEnabled(!s);
+	}
+
+	// Anything which would change or replace the rom has to wait for a background save to finish.
+	// Returns true (after saying so) if one is running.
+	boolean refuseWhileSaving(String title) {
+		if (!saving)
+			return false;
+		JOptionPane.showMessageDialog(null,
+				"The rom is still being saved.",
+				title,
+				JOptionPane.PLAIN_MESSAGE);
+		return true;
+	}
+
+	// Saves without blocking the EDT. Encoding, planning and writing the file happen on worker
+	// threads; only placing the records and writing the pointers happen here, in between.
+	// Editing can go on while it runs.
+	// The job is applied, and the metadata saved, in the session it was started in.
+	void saveRomInBackground() {
+		if (rom == null || saving)
+			return;
+		setSaving(true);
+
+		final RomSession session = RomSession.current();
+		final SaveJob job = new SaveJob(rom);
+		final ProgressMonitor monitor = new ProgressMonitor(this, "Saving rom", "", 0, 100);
+		monitor.setMillisToDecideToPopup(250);
+		// Encoding is most of the work; planning takes the next 20% and the write the last 10%
+		final SaveJob.Progress encodeProgress = new SaveJob.Progress() {
+			public void progress(String stage, int done, int total) {
+				showSaveProgress(monitor, stage, done*70/Math.max(total, 1));
+			}
+		};
+		final SaveJob.Progress planProgress = new SaveJob.Progress() {
+			public void progress(String stage, int done, int total) {
+				showSaveProgress(monitor, stage, 70 + done*20/Math.max(total, 1));
+			}
+		};
+		final SaveJob.Progress writeProgress = new SaveJob.Progress() {
+			public void progress(String stage, int done, int total) {
+				showSaveProgress(monitor, stage, 90 + done*10/Math.max(total, 1));
+			}
+		};
+
+		new SwingWorker<Object, Object>() {
+			protected Object doInBackground() {
+				job.encode(encodeProgress);
+				job.plan(planProgress);
+				return null;
+			}
+			protected void done() {
+				showSaveProgress(monitor, "Placing data", 90);
+				session.run(new Runnable() {
+					public void run() {
+						job.apply();
+					}
+				});
+				if (!job.getResult().succeeded()) {
+					monitor.close();
+					setSaving(false);
+					showSaveResult(job.finish());
+					return;
+				}
+				new SwingWorker<Object, Object>() {
+					protected Object doInBackground() {
+						job.write(writeProgress);
+						return null;
+					}
+					protected void done() {
+						monitor.close();
+						setSaving(false);
+						final SaveResult result = job.finish();
+						if (result.succeeded()) {
+							session.run(new Runnable() {
+								public void run() {
+									if (!ValueFileParser.saveMetadataFile(job.getChecksum()))
+										result.addWarning("The metadata file couldn't be written. Don't lose the rom's metadata!");
+									ValueFileParser.reloadValueFiles();
+								}
+							});
+						}
+						showSaveResult(result);
+					}
+				}.execute();
+			}
+		}.execute();
+	}
+
+	// Can be called from any thread.
+	void showSaveProgress(final ProgressMonitor monitor, final String note, final int percent) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				monitor.setNote(note);
+				monitor.setProgress(percent);
+			}
+		});
+	}
+
+	// The free space report goes along with it, so that the allocation policy can be picked by
+	// how fragmented the banks get.
+	void showSaveResult(SaveResult result) {
+		String s;
+		String title;
+		int type;
+		if (!result.succeeded()) {
+			s = result.getReport() + "\n\nThe rom was not saved.";
+			title = "Error";
+			type = JOptionPane.ERROR_MESSAGE;
+		}
+		else if (!result.getWarnings().isEmpty()) {
+			s = result.getReport() + "\n\nThe rom was still saved.";
+			title = "Warning";
+			type = JOptionPane.WARNING_MESSAGE;
+		}
+		else {
+			s = "The rom was saved.";
+			title = "Save";
+			type = JOptionPane.INFORMATION_MESSAGE;
+		}
+		if (result.getFragmentationReport().length() != 0)
+			s += "\n\n" + result.getFragmentationReport();
+		JTextArea text = new JTextArea(s, 10, 50);
+		text.setEditable(false);
+		text.setLineWrap(true);
+		text.setWrapStyleWord(true);
+		JOptionPane.showMessageDialog(null, new JScrollPane(text), title, type);
+	}
+
 	public void disableFields() {
 		levelEditButton.setEnabled(false);
 		warpEditButton.setEnabled(false);
@@ -784,6 +1067,8 @@ public class MainFrame extends JFrame
 
 	void loadRom(File f)
 	{
+		if (refuseWhileSaving("Open"))
+			return;
 		if (rom != null) {
 			if (rom.isModified()) {
 				int retval = savePrompt();
@@ -793,34 +1078,47 @@ public class MainFrame extends JFrame
 			rom.clearRecords();
 		}
 
-		rom = new RomReader(f);
-		TileSet.rom = rom;
-		RomReader.rom = rom;
-
-		String filename = f.getAbsolutePath();
-		String metadataFilename = filename.substring(0, filename.lastIndexOf('.'));
-		metadataFilename = metadataFilename + ".mtd";
-		
-		// Mind the order
-		ValueFileParser.reloadMetadataFile(metadataFilename);
-		if (!ValueFileParser.getMetadataFile().isOpened()) {
+		// Loads the metadata file, then RomLoader loads the rest, in parallel where the order allows it
+		RomSession session = RomSession.open(f);
+		if (session == null) {
+			rom = null;
+			RomSession.setDefault(new RomSession(null));
 			disableFields();
 			return;
 		}
+		rom = session.getRom();
+		applySettings();
+		RomSession.setDefault(session);
 
-		ValueFileParser.reloadValueFiles();
-		EnemySet.reloadEnemySets();
-		ObjectSet.reloadObjectSets();
-		TileSet.reloadTileSets();
-		RegionRecord.reloadRecords();
-
-		Level.reloadLevels();
+		for (String error : session.getLoadErrors()) {
+			JOptionPane.showMessageDialog(null,
+					error,
+					"Error",
+					JOptionPane.ERROR_MESSAGE);
+		}
 		
 		setLevel(Level.getLevel(0));
 		contentPane.repaint();
 		enableFields();
 	}
 
+	// Show how much the level's tile and object data can grow before it must be moved.
+	void updateLayoutSpace() {
+		Level l = levelViewer.level;
+		if (l == null) {
+			layoutSpaceLabel.setText("");
+			return;
+		}
+		layoutSpaceLabel.setText("Space: " +
+				spaceToString(l.getTileDataRecord().getSpaceRemaining()) + " / " +
+				spaceToString(l.getObjectDataRecord().getSpaceRemaining()));
+	}
+	String spaceToString(int space) {
+		if (space < 0)
+			return "-" + RomReader.toHexString(-space);
+		return RomReader.toHexString(space);
+	}
+
 	void setLevel(Level l) {
 		levelViewer.setLevel(l);
 		// Check if it's the boss level... it's kind of weird, so it needs certain things disabled.